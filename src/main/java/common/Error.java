@@ -76,4 +76,16 @@ public class Error {
     public static Exception InvalidMemException() {
         return new RuntimeException("Invalid mem num !");
     }
+
+    public static Exception InvalidCheckpointIntervalException() {
+        return new RuntimeException("Invalid checkpoint interval !");
+    }
+
+    public static Exception InvalidRedoThreadsException() {
+        return new RuntimeException("Invalid redo threads !");
+    }
+
+    public static Exception InvalidCommitWindowException() {
+        return new RuntimeException("Invalid commit window !");
+    }
 }
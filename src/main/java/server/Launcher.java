@@ -2,7 +2,14 @@ package server;
 
 import common.Error;
 import org.apache.commons.cli.*;
+import server.common.CacheStats;
+import server.common.CacheStatsMXBean;
+import server.common.MemoryBudget;
+import server.common.Metrics;
 import server.dm.DataManager;
+import server.dm.DataManagerImpl;
+import server.dm.pageCache.PageCacheImpl;
+import server.dm.pageCache.PageCacheStatsMXBean;
 import server.tbm.TableManager;
 import server.tm.TransactionManager;
 import server.tm.TransactionManagerImpl;
@@ -15,6 +22,9 @@ public class Launcher {
     public static final int port = 9999;
 
     public static final long DEFAUlT_MEM = (1<<20)*64;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final long DEFAULT_COMMIT_WINDOW = 10;
 
 
     public static final long KB = 1 << 10;
@@ -26,11 +36,19 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("checkpoint", true, "-checkpoint 1000 (ms, 0 to disable the background flusher)");
+        options.addOption("mmap", false, "-mmap (memory-mapped .db file)");
+        options.addOption("redo", true, "-redo 4 (recovery redo threads, 1 for serial redo)");
+        options.addOption("logcompress", false, "-logcompress (deflate large log records)");
+        options.addOption("commitwindow", true, "-commitwindow 10 (ms, max loss window of 'begin async' commits)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                    parseCheckpointInterval(cmd.getOptionValue("checkpoint")), cmd.hasOption("mmap"),
+                    parseRedoThreads(cmd.getOptionValue("redo")), cmd.hasOption("logcompress"),
+                    parseCommitWindow(cmd.getOptionValue("commitwindow")));
             return;
         }
         if (cmd.hasOption("create")) {
@@ -41,22 +59,77 @@ public class Launcher {
     }
 
     public static void createDB(String path) {
+        MemoryBudget budget = new MemoryBudget(DEFAUlT_MEM);
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFAUlT_MEM, tm);
-        VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(path, vm, dm);
+        DataManager dm = DataManager.create(path, budget, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm, budget.getEntryCacheSize());
+        TableManager.create(path, vm, dm, budget.getHashIndexSize());
         tm.close();
         dm.close();
     }
 
-    public static void openDB(String path, long mem) {
+    public static void openDB(String path, long mem, long checkpointInterval, boolean mmap, int redoThreads,
+                              boolean compressLog, long commitWindow) {
+        MemoryBudget budget = new MemoryBudget(mem);
+        System.out.println("Memory budget: " + budget);
         TransactionManagerImpl tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, DEFAUlT_MEM, tm);
-        VersionManagerImpl vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        DataManager dm = DataManager.open(path, budget, checkpointInterval, mmap, redoThreads, compressLog, commitWindow, tm);
+        VersionManagerImpl vm = new VersionManagerImpl(tm, dm, budget.getEntryCacheSize());
+        TableManager tbm = TableManager.open(path, vm, dm, budget.getHashIndexSize());
+        registerMBeans((DataManagerImpl) dm, vm);
         new Server(port, tbm).start();
     }
 
+    private static void registerMBeans(DataManagerImpl dm, VersionManagerImpl vm) {
+        Metrics.register("Cache", "PageCache", ((PageCacheImpl) dm.pc).getStats(), PageCacheStatsMXBean.class);
+        Metrics.register("Cache", "DataItemCache", new CacheStats(dm), CacheStatsMXBean.class);
+        Metrics.register("Cache", "EntryCache", new CacheStats(vm), CacheStatsMXBean.class);
+    }
+
+    private static long parseCheckpointInterval(String intervalStr) {
+        if(intervalStr == null || "".equals(intervalStr)) {
+            return DEFAULT_CHECKPOINT_INTERVAL;
+        }
+        try {
+            return Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidCheckpointIntervalException());
+        }
+        return DEFAULT_CHECKPOINT_INTERVAL;
+    }
+
+    private static long parseCommitWindow(String windowStr) {
+        if(windowStr == null || "".equals(windowStr)) {
+            return DEFAULT_COMMIT_WINDOW;
+        }
+        try {
+            long window = Long.parseLong(windowStr);
+            if(window >= 0) {
+                return window;
+            }
+        } catch (NumberFormatException e) {
+            // 下面统一报错
+        }
+        Panic.panic(Error.InvalidCommitWindowException());
+        return DEFAULT_COMMIT_WINDOW;
+    }
+
+    private static int parseRedoThreads(String threadsStr) {
+        if(threadsStr == null || "".equals(threadsStr)) {
+            return DEFAULT_REDO_THREADS;
+        }
+        try {
+            int threads = Integer.parseInt(threadsStr);
+            if(threads > 0) {
+                return threads;
+            }
+        } catch (NumberFormatException e) {
+            // 下面统一报错
+        }
+        Panic.panic(Error.InvalidRedoThreadsException());
+        return DEFAULT_REDO_THREADS;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFAUlT_MEM;
@@ -1,221 +1,403 @@
 package server.common;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-
+import java.util.function.IntFunction;
+
+/**
+ * 分段缓存：按key的hash分成若干段，每段有自己的锁和淘汰策略（默认新生代/老年代LRU）
+ * 同一个key的并发加载通过future协调，只有一个线程真正去getForCache，其余线程等待结果
+ * 每个节点带引用计数：get一次pin一次，release只是unpin，淘汰只会选择没有被pin住的节点
+ * maxResource <= 0 表示不限制容量，此时最后一次release就直接移出缓存
+ * 被淘汰的节点在releaseForCache（写回）做完之前，key一直登记在getting里，
+ * 这期间get同一个key会等写回结束再去getForCache，不会读到写回之前的旧数据
+ */
 public abstract class AbstractCache<T> {
-    protected int ageDiff;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_RESOURCE = 64;
+
     protected int maxResource;
-    Set<Long> getting;
-    Lock lock;
-
-    protected Map<Long, Node> newCache = new HashMap<>();
-    Node newHead;
-    protected Node newTail;
-    protected int newResource;
-    protected int newCount;
-
-    protected Map<Long, Node> oldCache = new HashMap<>();
-    Node oldHead;
-    Node oldTail;
-    int oldResource;
-    int oldCount;
-
-    protected class Node {
-        protected Long key;
+
+    private List<Segment> segments;
+    private int segmentMask;
+
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+
+    protected class Node extends CacheNode {
         protected T content;
-        Long state;
-        public Node prev;
-        Node next;
 
-        public Node(Long key, T content) {
-            this.key = key;
+        public Node(long key, T content) {
+            super(key);
             this.content = content;
-            state = 1L;
         }
 
-        public Node() {}
-
         public T getContent() {
             return content;
         }
     }
 
+    private class Segment {
+        Lock lock = new ReentrantLock();
+        Map<Long, CompletableFuture<T>> getting = new HashMap<>();
+        Map<Long, Node> cache = new HashMap<>();
+        EvictionPolicy policy;
+        int resource;
 
+        Segment(int resource, EvictionPolicy policy) {
+            this.resource = resource;
+            this.policy = policy;
+        }
 
-    public AbstractCache(int maxResource) {
-        ageDiff = 10;
-        this.maxResource = maxResource;
-        getting = new HashSet<>();
-        lock = new ReentrantLock();
-        newResource = (int) (maxResource * 0.3);
-        oldResource = (int) (maxResource * 0.7);
-        newCount = 0;
-        oldCount = 0;
+        Node lookup(long key) {
+            Node node = cache.get(key);
+            if(node != null) {
+                policy.onAccess(node);
+            }
+            return node;
+        }
+
+        // 满了就让策略挑没被pin住的淘汰，全都被pin住时允许暂时超出容量，等release时再回收
+        @SuppressWarnings("unchecked")
+        void add(Node node, List<Node> victims) {
+            if(resource > 0) {
+                while(cache.size() >= resource) {
+                    Node victim = (Node) policy.victim();
+                    if(victim == null) {
+                        break;
+                    }
+                    victims.add(evict(victim));
+                    evictions.increment();
+                }
+            }
+            cache.put(node.key, node);
+            policy.onInsert(node);
+        }
+
+        Node remove(Node node) {
+            cache.remove(node.key);
+            policy.onRemove(node);
+            return node;
+        }
+
+        // 移出缓存并占住getting，调用方releaseForCache之后要用finishEviction放开
+        Node evict(Node node) {
+            remove(node);
+            getting.put(node.key, new CompletableFuture<>());
+            return node;
+        }
+
+        boolean overflow() {
+            return resource > 0 && cache.size() > resource;
+        }
+    }
 
-        newHead = new Node();
-        newTail = new Node();
-        oldHead = new Node();
-        oldTail = new Node();
+    public AbstractCache(int maxResource) {
+        this(maxResource, YoungOldPolicy::new);
+    }
 
-        oldHead.next = oldTail;
-        oldTail.prev = oldHead;
-        newHead.next = newTail;
-        newTail.prev = newHead;
+    /**
+     * @param policyFactory 按分段容量创建每个分段的淘汰策略
+     */
+    public AbstractCache(int maxResource, IntFunction<EvictionPolicy> policyFactory) {
+        this.maxResource = maxResource;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+
+        int segmentCount = MAX_SEGMENTS;
+        if(maxResource > 0) {
+            while(segmentCount > 1 && segmentCount * MIN_SEGMENT_RESOURCE > maxResource) {
+                segmentCount >>= 1;
+            }
+        }
+        segments = new ArrayList<>(segmentCount);
+        segmentMask = segmentCount - 1;
+        int perSegment = maxResource > 0 ? (maxResource + segmentCount - 1) / segmentCount : 0;
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(new Segment(perSegment, policyFactory.apply(perSegment)));
+        }
     }
 
+    private Segment segmentFor(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return segments.get(h & segmentMask);
+    }
 
     protected T get(long key) {
+        Segment seg = segmentFor(key);
+        CompletableFuture<T> future;
+
         while (true) {
-            lock.lock();
-            if(getting.contains(key)) {
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-//                    continue;
+            seg.lock.lock();
+            try {
+                Node node = seg.lookup(key);
+                if(node != null) {
+                    node.pins++;
+                    hits.increment();
+                    return node.content;
                 }
-                continue;
-            }
-
-            if(oldCache.containsKey(key)) {
-                Node node = oldCache.get(key);
-                moveToHead(node, true);
-                return oldCache.get(key).content;
-            } else if(newCache.containsKey(key)) {
-                Node node = newCache.get(key);
-                moveToHead(node, false);
-                node.state++;
-                if(node.state > ageDiff) {
-                    toOld(node);
-                    newCache.remove(key);
-                    oldCache.put(key, node);
+                future = seg.getting.get(key);
+                if(future == null) {
+                    future = new CompletableFuture<>();
+                    seg.getting.put(key, future);
+                    misses.increment();
+                    break;
                 }
-                return newCache.get(key).content;
+            } finally {
+                seg.lock.unlock();
             }
+            // 别的线程正在加载，等它加载完再回去pin一次
+            await(future);
+        }
 
-            while(newCount >= newResource) {
-                newCache.remove(newTail.prev.key);
-                newCache.remove(newTail.prev);
-                removeTail(true);
-                newCount--;
-            }
+        return load(seg, key, future, 1);
+    }
 
-            newCount++;
-            getting.add(key);
-            lock.unlock();
-            break;
+    /**
+     * 预读：不在缓存里也没人在加载时才加载，加载进来的节点不pin
+     */
+    protected void preload(long key) {
+        Segment seg = segmentFor(key);
+        CompletableFuture<T> future;
+        seg.lock.lock();
+        try {
+            if(seg.cache.containsKey(key) || seg.getting.containsKey(key)) {
+                return;
+            }
+            future = new CompletableFuture<>();
+            seg.getting.put(key, future);
+        } finally {
+            seg.lock.unlock();
         }
+        load(seg, key, future, 0);
+    }
 
-        Node node;
+    private T load(Segment seg, long key, CompletableFuture<T> future, int pins) {
+        T obj;
         try {
-            node = new Node(key, getForCache(key));
-
+            obj = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            newCount--;
-            getting.remove(key);
-            lock.unlock();
-            throw new RuntimeException(e);
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            future.completeExceptionally(e);
+            throw rethrow(e);
         }
 
-        lock.lock();
-        getting.remove(key);
-        addToHead(node,  true);
-        newCache.put(key, node);
-        lock.unlock();
+        List<Node> victims = new ArrayList<>();
+        seg.lock.lock();
+        try {
+            seg.getting.remove(key);
+            Node node = new Node(key, obj);
+            node.pins = pins;
+            seg.add(node, victims);
+        } finally {
+            seg.lock.unlock();
+        }
+        future.complete(obj);
 
-        return node.content;
+        releaseVictims(seg, victims);
+        return obj;
     }
 
-    protected void addToHead(Node node, boolean b) {
-        if(b) {
-            oldTail.prev.next = node;
-            node.prev = oldTail.prev;
-            oldTail.prev = node;
-            node.next = oldTail;
+    private void releaseVictims(Segment seg, List<Node> victims) {
+        for (Node victim : victims) {
+            try {
+                releaseForCache(victim.content);
+            } finally {
+                finishEviction(seg, victim);
+            }
+        }
+    }
 
-        } else {
-            newTail.prev.next = node;
-            node.prev = newTail.prev;
-            newTail.prev = node;
-            node.next = newTail;
+    // 写回做完了，放开getting里的占位，等着的线程回去重新加载
+    private void finishEviction(Segment seg, Node victim) {
+        CompletableFuture<T> future;
+        seg.lock.lock();
+        try {
+            future = seg.getting.remove(victim.key);
+        } finally {
+            seg.lock.unlock();
+        }
+        future.complete(null);
+    }
 
+    private void await(CompletableFuture<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw rethrow(e.getCause());
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    protected void removeTail(boolean b) {
-        if(b) {
-            removeNode(oldTail.prev);
-        } else {
-            removeNode(newTail.prev);
+    private RuntimeException rethrow(Throwable e) {
+        if(e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if(e instanceof java.lang.Error) {
+            throw (java.lang.Error) e;
         }
+        return new RuntimeException(e);
     }
 
-    private void toOld(Node node) {
-        // 1.升级进入老年代
-        // 2.老年代满了就弹出老人
-        removeNode(node);
-        addToHead(node, true);
+    /**
+     * 只查缓存，不触发加载，也不pin
+     */
+    protected T getIfPresent(long key) {
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Node node = seg.lookup(key);
+            if(node == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return node.content;
+        } finally {
+            seg.lock.unlock();
+        }
     }
 
-    protected void moveToHead(Node node, Boolean b) {
-        removeNode(node);
-        addToHead(node, b);
+    protected boolean containsKey(long key) {
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            return seg.cache.containsKey(key);
+        } finally {
+            seg.lock.unlock();
+        }
+    }
 
+    /**
+     * 直接放入缓存，已存在则替换内容
+     */
+    protected void put(long key, T obj) {
+        Segment seg = segmentFor(key);
+        List<Node> victims = new ArrayList<>();
+        seg.lock.lock();
+        try {
+            Node node = seg.lookup(key);
+            if(node != null) {
+                node.content = obj;
+            } else {
+                seg.add(new Node(key, obj), victims);
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+        releaseVictims(seg, victims);
     }
 
+    /**
+     * unpin一次，引用计数归零的节点仍留在缓存里，只有超出容量或不限容量时才真正移出
+     */
     protected void release(long key) {
-        lock.lock();
+        Segment seg = segmentFor(key);
         Node node;
-        if(oldCache.containsKey(key)) {
-            node = oldCache.get(key);
-            oldCache.remove(key);
-            oldCount--;
-        } else {
-            node = newCache.get(key);
-            newCache.remove(key);
-            newCount--;
+        seg.lock.lock();
+        try {
+            node = seg.cache.get(key);
+            if(node == null) {
+                return;
+            }
+            if(node.pins > 0) {
+                node.pins--;
+            }
+            if(node.pins > 0 || (maxResource > 0 && !seg.overflow())) {
+                return;
+            }
+            seg.evict(node);
+        } finally {
+            seg.lock.unlock();
         }
         try {
             releaseForCache(node.content);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         } finally {
-            lock.unlock();
+            finishEviction(seg, node);
         }
     }
 
     protected void close() {
-        lock.lock();
-        try {
-            for(Long key : newCache.keySet()) {
-                Node node = newCache.get(key);
-                removeNode(node);
-                releaseForCache(node.content);
-                newResource--;
+        for (Segment seg : segments) {
+            List<Node> nodes;
+            seg.lock.lock();
+            try {
+                nodes = new ArrayList<>(seg.cache.values());
+                for (Node node : nodes) {
+                    seg.remove(node);
+                }
+            } finally {
+                seg.lock.unlock();
             }
-            for(Long key : oldCache.keySet()) {
-                Node node = oldCache.get(key);
-                removeNode(node);
+            for (Node node : nodes) {
                 releaseForCache(node.content);
-                oldResource--;
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.unlock();
         }
     }
 
-    private void removeNode(Node node) {
-        node.prev.next = node.next;
-        node.next.prev = node.prev;
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                size += seg.cache.size();
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public int getPinnedCount() {
+        int pinned = 0;
+        for (Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for (Node node : seg.cache.values()) {
+                    if(node.isPinned()) {
+                        pinned++;
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return pinned;
     }
 
     protected abstract T getForCache(long key) throws Exception;
@@ -0,0 +1,58 @@
+package server.common;
+
+/**
+ * 带哨兵的双向链表，头部是最近使用的，尾部是最久未使用的
+ */
+class CacheList {
+    private CacheNode head;
+    private CacheNode tail;
+    private int size;
+
+    CacheList() {
+        head = new CacheNode(0);
+        tail = new CacheNode(0);
+        head.next = tail;
+        tail.prev = head;
+    }
+
+    void addFirst(CacheNode node) {
+        node.next = head.next;
+        node.prev = head;
+        head.next.prev = node;
+        head.next = node;
+        size++;
+    }
+
+    void remove(CacheNode node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        size--;
+    }
+
+    void moveToFirst(CacheNode node) {
+        remove(node);
+        addFirst(node);
+    }
+
+    /**
+     * 从尾部往前找第一个没被pin住的
+     */
+    CacheNode lastUnpinned() {
+        for (CacheNode node = tail.prev; node != head; node = node.prev) {
+            if(!node.isPinned()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    CacheNode last() {
+        return tail.prev == head ? null : tail.prev;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,27 @@
+package server.common;
+
+/**
+ * 缓存节点的公共部分：key、引用计数，以及给淘汰策略用的链表指针
+ */
+public class CacheNode {
+    protected final long key;
+    int pins;
+
+    // 以下字段只由EvictionPolicy维护
+    CacheNode prev;
+    CacheNode next;
+    int queue;
+    long state;
+
+    protected CacheNode(long key) {
+        this.key = key;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public boolean isPinned() {
+        return pins > 0;
+    }
+}
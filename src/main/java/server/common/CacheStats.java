@@ -0,0 +1,46 @@
+package server.common;
+
+public class CacheStats implements CacheStatsMXBean {
+    private AbstractCache<?> cache;
+
+    public CacheStats(AbstractCache<?> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = cache.getHitCount();
+        long total = hits + cache.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public int getCapacity() {
+        return cache.maxResource;
+    }
+
+    @Override
+    public int getPinnedCount() {
+        return cache.getPinnedCount();
+    }
+}
@@ -0,0 +1,14 @@
+package server.common;
+
+/**
+ * 通过JMX导出的缓存统计
+ */
+public interface CacheStatsMXBean {
+    long getHitCount();
+    long getMissCount();
+    double getHitRatio();
+    long getEvictionCount();
+    int getSize();
+    int getCapacity();
+    int getPinnedCount();
+}
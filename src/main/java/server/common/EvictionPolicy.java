@@ -0,0 +1,16 @@
+package server.common;
+
+/**
+ * AbstractCache的淘汰策略，每个分段一个实例，调用方已经持有分段锁
+ * 策略只负责维护顺序和挑选淘汰对象，容量判断和真正的移除由缓存分段完成
+ */
+public interface EvictionPolicy {
+    void onInsert(CacheNode node);
+    void onAccess(CacheNode node);
+    void onRemove(CacheNode node);
+
+    /**
+     * 挑一个没被pin住的节点淘汰，全都被pin住时返回null
+     */
+    CacheNode victim();
+}
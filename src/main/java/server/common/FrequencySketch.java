@@ -0,0 +1,62 @@
+package server.common;
+
+/**
+ * Count-Min Sketch，估算key最近一段时间的访问频率，给TinyLfuPolicy做准入判断
+ * 4行计数器，每个计数器最大15；累计加满sampleSize次后所有计数器减半，让旧的热度慢慢衰减
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final int MAX_COUNT = 15;
+
+    private byte[][] table;
+    private int mask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int width = 16;
+        while(width < capacity * 2 && width < (1 << 24)) {
+            width <<= 1;
+        }
+        table = new byte[SEEDS.length][width];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    private int index(long key, int row) {
+        long h = (key + SEEDS[row]) * SEEDS[row];
+        h ^= (h >>> 32);
+        return (int) h & mask;
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < table.length; row++) {
+            int i = index(key, row);
+            if(table[row][i] < MAX_COUNT) {
+                table[row][i]++;
+                added = true;
+            }
+        }
+        if(added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(long key) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < table.length; row++) {
+            min = Math.min(min, table[row][index(key, row)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (byte[] counters : table) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = (byte) (counters[i] >>> 1);
+            }
+        }
+        additions >>>= 1;
+    }
+}
@@ -0,0 +1,72 @@
+package server.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图，按微秒的2的幂分桶：第i个桶统计 [2^(i-1), 2^i) 微秒，最后一个桶收所有更慢的
+ * 每个桶是LongAdder，多线程记录时没有竞争
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 24;
+
+    private LongAdder[] buckets;
+    private LongAdder count;
+    private LongAdder totalNanos;
+
+    public LatencyHistogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        totalNanos = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long[] snapshot() {
+        long[] res = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            res[i] = buckets[i].sum();
+        }
+        return res;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * 按桶估算分位数，返回所在桶的上界（微秒）
+     */
+    public long percentileMicros(double p) {
+        long[] snap = snapshot();
+        long total = 0;
+        for (long c : snap) {
+            total += c;
+        }
+        if(total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < snap.length; i++) {
+            seen += snap[i];
+            if(seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
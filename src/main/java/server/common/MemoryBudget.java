@@ -0,0 +1,72 @@
+package server.common;
+
+import server.dm.pageCache.PageCache;
+
+/**
+ * 内存预算，把-mem给的总内存按比例分给各个缓存：
+ * 页缓存 70%，DataItem缓存 15%，Entry缓存 5%，自适应哈希索引 10%
+ * 页缓存按页大小换算成页数，其余缓存按单个对象的估算大小换算成条目数
+ */
+public class MemoryBudget {
+    private static final double PAGE_CACHE_RATIO = 0.7;
+    private static final double DATA_ITEM_CACHE_RATIO = 0.15;
+    private static final double ENTRY_CACHE_RATIO = 0.05;
+    private static final double HASH_INDEX_RATIO = 0.1;
+
+    // DataItemImpl + SubArray + oldRaw + 读写锁
+    private static final int DATA_ITEM_SIZE = 256;
+    // Entry只是对DataItem的包装
+    private static final int ENTRY_SIZE = 64;
+    // 一个等值查询结果的uid列表
+    private static final int HASH_INDEX_ENTRY_SIZE = 512;
+
+    private static final int MIN_PAGES = 16;
+    private static final int MIN_ENTRIES = 64;
+
+    private long total;
+    private long pageCacheMemory;
+    private int dataItemCacheSize;
+    private int entryCacheSize;
+    private int hashIndexSize;
+
+    public MemoryBudget(long total) {
+        this.total = total;
+        this.pageCacheMemory = Math.max((long) (total * PAGE_CACHE_RATIO), (long) MIN_PAGES * PageCache.PAGE_SIZE);
+        this.dataItemCacheSize = entries(total * DATA_ITEM_CACHE_RATIO, DATA_ITEM_SIZE);
+        this.entryCacheSize = entries(total * ENTRY_CACHE_RATIO, ENTRY_SIZE);
+        this.hashIndexSize = entries(total * HASH_INDEX_RATIO, HASH_INDEX_ENTRY_SIZE);
+    }
+
+    private static int entries(double memory, int entrySize) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ENTRIES, (long) memory / entrySize));
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getPageCacheMemory() {
+        return pageCacheMemory;
+    }
+
+    public int getDataItemCacheSize() {
+        return dataItemCacheSize;
+    }
+
+    public int getEntryCacheSize() {
+        return entryCacheSize;
+    }
+
+    public int getHashIndexSize() {
+        return hashIndexSize;
+    }
+
+    @Override
+    public String toString() {
+        return "total: " + total
+                + ", page cache: " + pageCacheMemory / PageCache.PAGE_SIZE + " pages"
+                + ", data item cache: " + dataItemCacheSize
+                + ", entry cache: " + entryCacheSize
+                + ", hash index: " + hashIndexSize;
+    }
+}
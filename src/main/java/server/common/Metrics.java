@@ -0,0 +1,28 @@
+package server.common;
+
+import server.utils.Panic;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 把统计对象注册到平台MBeanServer，ObjectName为 outnodb:type=Cache,name=xxx
+ */
+public class Metrics {
+    private static final String DOMAIN = "outnodb";
+
+    public static <T> void register(String type, String name, T mbean, Class<T> mbeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(mbean, mbeanInterface, true), objectName);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package server.common;
+
+/**
+ * W-TinyLFU：1%的窗口LRU + 主区分段LRU（试用区20%，保护区80%）
+ * 新页先进窗口，窗口满了之后窗口最久未使用的要和试用区最久未使用的比较访问频率，频率高的留下
+ * 全表扫描只访问一次的页频率很低，进不了主区，不会把热点页挤出去
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private int windowResource;
+    private int mainResource;
+    private int protectedResource;
+
+    private CacheList window;
+    private CacheList probation;
+    private CacheList protect;
+    private FrequencySketch sketch;
+
+    public TinyLfuPolicy(int resource) {
+        resource = Math.max(resource, 2);
+        this.windowResource = Math.max(1, resource / 100);
+        this.mainResource = resource - windowResource;
+        this.protectedResource = Math.max(1, (int) (mainResource * 0.8));
+        this.window = new CacheList();
+        this.probation = new CacheList();
+        this.protect = new CacheList();
+        this.sketch = new FrequencySketch(resource);
+    }
+
+    @Override
+    public void onInsert(CacheNode node) {
+        sketch.increment(node.key);
+        node.queue = WINDOW;
+        window.addFirst(node);
+        // 主区还没用满时窗口溢出的直接进试用区
+        while(window.size() > windowResource && probation.size() + protect.size() < mainResource) {
+            CacheNode moved = window.last();
+            window.remove(moved);
+            moved.queue = PROBATION;
+            probation.addFirst(moved);
+        }
+    }
+
+    @Override
+    public void onAccess(CacheNode node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToFirst(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protect.addFirst(node);
+                if(protect.size() > protectedResource) {
+                    CacheNode demoted = protect.last();
+                    protect.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addFirst(demoted);
+                }
+                break;
+            default:
+                protect.moveToFirst(node);
+        }
+    }
+
+    @Override
+    public void onRemove(CacheNode node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            default:
+                protect.remove(node);
+        }
+    }
+
+    @Override
+    public CacheNode victim() {
+        CacheNode candidate = window.size() >= windowResource ? window.lastUnpinned() : null;
+        CacheNode mainVictim = probation.lastUnpinned();
+        if(mainVictim == null) {
+            mainVictim = protect.lastUnpinned();
+        }
+
+        if(candidate == null) {
+            return mainVictim != null ? mainVictim : window.lastUnpinned();
+        }
+        if(mainVictim == null) {
+            return candidate;
+        }
+        // 窗口淘汰出来的比主区的更热，就让它进试用区，淘汰主区的
+        if(sketch.frequency(candidate.key) > sketch.frequency(mainVictim.key)) {
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.addFirst(candidate);
+            return mainVictim;
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,72 @@
+package server.common;
+
+/**
+ * 新生代/老年代LRU：新加入的进新生代，在新生代里被访问超过ageDiff次升级进老年代，
+ * 老年代满了就把老年代最久未使用的降回新生代；淘汰先从新生代尾部找，再从老年代尾部找
+ */
+public class YoungOldPolicy implements EvictionPolicy {
+    private static final int YOUNG = 0;
+    private static final int OLD = 1;
+
+    private int ageDiff;
+    private int oldResource;
+    private CacheList young;
+    private CacheList old;
+
+    public YoungOldPolicy(int resource) {
+        this.ageDiff = 10;
+        this.oldResource = resource > 0 ? Math.max(1, resource - Math.max(1, (int) (resource * 0.3))) : 0;
+        this.young = new CacheList();
+        this.old = new CacheList();
+    }
+
+    @Override
+    public void onInsert(CacheNode node) {
+        node.queue = YOUNG;
+        node.state = 1;
+        young.addFirst(node);
+    }
+
+    @Override
+    public void onAccess(CacheNode node) {
+        if(node.queue == OLD) {
+            old.moveToFirst(node);
+            return;
+        }
+        young.moveToFirst(node);
+        node.state++;
+        if(node.state > ageDiff) {
+            toOld(node);
+        }
+    }
+
+    // 1.升级进入老年代
+    // 2.老年代满了就把老年代最久未使用的降回新生代头部
+    private void toOld(CacheNode node) {
+        young.remove(node);
+        if(oldResource > 0 && old.size() >= oldResource) {
+            CacheNode demoted = old.last();
+            old.remove(demoted);
+            demoted.queue = YOUNG;
+            demoted.state = 1;
+            young.addFirst(demoted);
+        }
+        node.queue = OLD;
+        old.addFirst(node);
+    }
+
+    @Override
+    public void onRemove(CacheNode node) {
+        if(node.queue == OLD) {
+            old.remove(node);
+        } else {
+            young.remove(node);
+        }
+    }
+
+    @Override
+    public CacheNode victim() {
+        CacheNode node = young.lastUnpinned();
+        return node != null ? node : old.lastUnpinned();
+    }
+}
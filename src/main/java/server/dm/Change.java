@@ -0,0 +1,30 @@
+package server.dm;
+
+/**
+ * 已提交事务里的一次行改动，数据都不含DataItem的头
+ * INSERT：after是插入的数据，before为null，offset为0
+ * UPDATE：数据从offset开始的一段由before改成了after
+ */
+public class Change {
+    public enum Type {
+        INSERT, UPDATE
+    }
+
+    public final Type type;
+    public final long xid;
+    public final long lsn;
+    public final long uid;
+    public final int offset;
+    public final byte[] before;
+    public final byte[] after;
+
+    public Change(Type type, long xid, long lsn, long uid, int offset, byte[] before, byte[] after) {
+        this.type = type;
+        this.xid = xid;
+        this.lsn = lsn;
+        this.uid = uid;
+        this.offset = offset;
+        this.before = before;
+        this.after = after;
+    }
+}
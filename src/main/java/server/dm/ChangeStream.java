@@ -0,0 +1,125 @@
+package server.dm;
+
+import server.dm.logger.LogReader;
+import server.dm.logger.LogRecord;
+import server.tm.TransactionManager;
+import server.tm.TransactionManagerImpl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 从某个LSN开始跟着日志读，把已提交事务的行改动按提交顺序交给调用方
+ *
+ * 1.poll把已经落盘的日志读完，按事务攒起来
+ * 2.读到提交日志就把这个事务整个交出去，读到撤销日志就扔掉，交出去的顺序就是提交日志在日志里的顺序
+ * 3.没有提交/撤销日志就结束了的事务（崩溃后恢复撤销的），读完之后按xid文件里的状态处理
+ * 4.起点之前就开始了的事务只看得到后半截，不交出去
+ * SUPER_ID下的改动是索引结构的维护，不算行的改动
+ *
+ * position()是下次从这里接着读不会漏掉事务的LSN，但可能把已经交出去的事务再交一次，调用方按xid去重
+ * 流打开期间checkpoint不会删掉position之后的日志，用完要close
+ */
+public class ChangeStream {
+    private DataManagerImpl dm;
+    private TransactionManager tm;
+    private LogReader reader;
+    // xid -> 攒着的改动，按LSN顺序
+    private Map<Long, List<Change>> pending;
+    private volatile long position;
+
+    ChangeStream(DataManagerImpl dm, TransactionManager tm, LogReader reader) {
+        this.dm = dm;
+        this.tm = tm;
+        this.reader = reader;
+        this.pending = new LinkedHashMap<>();
+        this.position = reader.position();
+    }
+
+    /**
+     * 读到目前已经落盘的日志末尾，交出这期间提交的事务
+     * @return 交出去的事务个数
+     */
+    public int poll(Consumer<Change> consumer) {
+        int emitted = drain(consumer);
+
+        // xid文件里已经结束了的事务，提交的话提交日志在改状态之前就落盘了，再读一遍就能按顺序交出去；
+        // 再读完还留着的，是没有提交/撤销日志就结束了的事务；异步提交的事务提交日志可能还没落盘，下次再看
+        List<Long> ended = new ArrayList<>();
+        for (long xid : pending.keySet()) {
+            if(!tm.isActive(xid) && !dm.isAsyncCommitPending(xid)) {
+                ended.add(xid);
+            }
+        }
+        if(!ended.isEmpty()) {
+            emitted += drain(consumer);
+            for (long xid : ended) {
+                List<Change> changes = pending.remove(xid);
+                if(changes != null && tm.isCommitted(xid)) {
+                    emit(changes, consumer);
+                    emitted++;
+                }
+            }
+        }
+
+        long pos = reader.position();
+        for (List<Change> changes : pending.values()) {
+            pos = Math.min(pos, changes.get(0).lsn);
+        }
+        position = pos;
+        return emitted;
+    }
+
+    // 读到已经落盘的日志末尾，碰到提交日志就交出去
+    private int drain(Consumer<Change> consumer) {
+        int emitted = 0;
+        while(true) {
+            LogRecord log = reader.next();
+            if(log == null) {
+                return emitted;
+            }
+            if(Recover.isCheckpointLog(log)) {
+                continue;
+            }
+            long xid = Recover.xidOf(log);
+            if(xid == TransactionManagerImpl.SUPER_ID) {
+                continue;
+            }
+            if(Recover.isEndLog(log)) {
+                List<Change> changes = pending.remove(xid);
+                if(changes != null && Recover.isCommitLog(log)) {
+                    emit(changes, consumer);
+                    emitted++;
+                }
+                continue;
+            }
+            List<Change> changes = pending.get(xid);
+            if(changes == null) {
+                if(Recover.prevLsnOf(log) != -1) {
+                    continue;
+                }
+                changes = new ArrayList<>();
+                pending.put(xid, changes);
+            }
+            changes.add(Recover.changeOf(log));
+        }
+    }
+
+    private static void emit(List<Change> changes, Consumer<Change> consumer) {
+        for (Change change : changes) {
+            consumer.accept(change);
+        }
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void close() {
+        dm.closeChangeStream(this);
+        reader.close();
+    }
+}
@@ -1,5 +1,6 @@
 package server.dm;
 
+import server.common.MemoryBudget;
 import server.dm.dataItem.DataItem;
 import server.dm.dataItem.DataItemImpl;
 import server.dm.logger.Logger;
@@ -12,27 +13,57 @@ import server.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid);
     long insert(long xid, byte[] data);
+    void flushLog();
+    // 在后台线程里跑预读任务，忙不过来就丢掉，关闭时不再接新任务
+    void readAhead(Runnable task);
+    /**
+     * 写提交日志并等它随所在批次落盘，返回后才能把事务标成已提交，xid文件不用再fsync
+     * 没写过日志的事务不用写
+     */
+    void logCommit(long xid);
+    /**
+     * 写提交日志不等落盘，写日志线程把它所在的批次落盘后再把状态写进xid文件，
+     * 调用方只能用TransactionManager.commitInMemory
+     */
+    void logCommitAsync(long xid);
+    // 写撤销日志，不用等落盘，没落盘的话恢复时这个事务也会被撤销
+    void logAbort(long xid);
+    // TransactionManager里的状态改完之后调用，这个事务不用再记进checkpoint了
+    void endTransaction(long xid);
+    // 从fromLsn开始读已提交的行改动，fromLsn比最早的日志还早就从最早的日志开始
+    ChangeStream openChangeStream(long fromLsn);
     void close();
 
-    public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCacheImpl pc = PageCache.create(path, mem);
+    public static DataManager create(String path, MemoryBudget budget, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.create(path, budget.getPageCacheMemory());
         LoggerImpl lg = Logger.create(path);
+        pc.setLogger(lg);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, tm, lg);
+        DataManagerImpl dm = new DataManagerImpl(pc, tm, lg, budget.getDataItemCacheSize());
         dm.initPageOne();
         return dm;
     }
 
-    public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCacheImpl pc = PageCache.open(path, mem);
+    /**
+     * @param redoThreads 崩溃恢复时的redo线程数，1表示串行重放
+     * @param compressLog 是否压缩新写的大日志，读日志时压没压过都认
+     * @param commitWindow 有异步提交的日志、又没人等日志落盘时，写日志线程最多攒多久再写，毫秒，也是异步提交最多丢多久的提交
+     */
+    public static DataManager open(String path, MemoryBudget budget, long checkpointInterval, boolean mmap, int redoThreads,
+                                   boolean compressLog, long commitWindow, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.open(path, budget.getPageCacheMemory(), mmap);
         LoggerImpl lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, tm, lg);
+        lg.setCompress(compressLog);
+        lg.setFlushDelay(commitWindow);
+        pc.setLogger(lg);
+        DataManagerImpl dm = new DataManagerImpl(pc, tm, lg, budget.getDataItemCacheSize());
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, redoThreads);
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer(checkpointInterval);
 
         return dm;
     }
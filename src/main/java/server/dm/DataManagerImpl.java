@@ -15,7 +15,23 @@ import server.tm.TransactionManager;
 import server.utils.Panic;
 import server.utils.Types;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
+    private static final int READ_AHEAD_THREADS = 2;
+    private static final int READ_AHEAD_QUEUE = 64;
+
     public PageCache pc;
     // todo tm是不是可以删掉？
     public TransactionManager tm;
@@ -23,18 +39,54 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     public PageIndex pIndex;
     public Page pageOne;
 
-    public DataManagerImpl(PageCache pc, TransactionManager tm, Logger lg) {
-        super(0);
+    // 写过日志的活跃事务，checkpoint时算日志能删到哪里，恢复时从最后一条日志往回撤销
+    // 事务的状态写进xid文件之后（endTransaction）才移出去：在这之前checkpoint得把它记下，
+    // 不然checkpoint越过了它的提交日志，xid文件里却还是active，崩溃后会被当成没结束的撤销掉
+    private Map<Long, TxnLog> activeTxns;
+    private ScheduledExecutorService checkpointer;
+    // 上层的预读任务，比如B+树顺着叶子链往前读
+    private ThreadPoolExecutor readAhead;
+    private long lastCheckpointLsn = -1;
+    private Set<ChangeStream> changeStreams;
+    // 异步提交了、xid文件还没写的事务，提交日志的LSN -> xid，每批日志落盘后写掉落盘了的那部分
+    private ConcurrentSkipListMap<Long, Long> asyncCommits;
+    private Set<Long> pendingAsyncCommits;
+
+    // 同一个事务的日志是串行写的，锁它只是为了checkpoint拷贝时读到一致的两个LSN
+    private static class TxnLog {
+        long firstLsn;
+        long lastLsn = -1;
+
+        TxnLog(long firstLsn) {
+            this.firstLsn = firstLsn;
+        }
+    }
+
+    public DataManagerImpl(PageCache pc, TransactionManager tm, Logger lg, int maxResource) {
+        super(maxResource);
         this.pc = pc;
         this.tm = tm;
         this.lg = lg;
         this.pIndex = new PageIndex();
+        this.activeTxns = new ConcurrentHashMap<>();
+        this.changeStreams = ConcurrentHashMap.newKeySet();
+        this.asyncCommits = new ConcurrentSkipListMap<>();
+        this.pendingAsyncCommits = ConcurrentHashMap.newKeySet();
+        lg.setFlushListener(this::persistAsyncCommits);
+        // 队列满了就直接丢掉，预读只是优化
+        this.readAhead = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), r -> {
+                    Thread t = new Thread(r, "dm-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
     }
 
 
     @Override
     public DataItem read(long uid) {
         DataItemImpl dataItem = (DataItemImpl) super.get(uid);
+        dataItem.pinPage();
         if(!dataItem.isValid()) {
             // 失效了，那就没必要占用资源了
             dataItem.release();
@@ -65,71 +117,272 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
 
         Page pg = null;
+        int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            lg.log(log);
-
-            short offset = PageX.insert(pg, raw);
+            short offset;
+            // 标脏要在写日志之前，这样页的recLsn不会晚于这条日志；
+            // 写回拷贝页时要拿页锁，不会拷到写了日志却还没改的页
+            pg.lock();
+            try {
+                pg.setDirty(true);
+                final Page page = pg;
+                long lsn = log(xid, prevLsn -> Recover.insertLog(xid, prevLsn, page, raw));
+                offset = PageX.insert(pg, raw);
+                PageX.setPageLsn(pg, lsn);
+            } finally {
+                pg.unlock();
+            }
+            // release之后页帧可能被复用，空闲空间要在release之前算
+            freeSpace = PageX.getFreeSpace(pg);
 
             pg.release();
             return Types.addressToUid(pi.pgno, offset);
         } finally {
-            if(pg == null) {
-                pIndex.add(pi.pgno, 0);
-            } else {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            }
+            pIndex.add(pi.pgno, freeSpace);
         }
     }
 
     @Override
     public void close() {
+        // 还没开始的预读不做了，在跑的等它读完
+        readAhead.shutdownNow();
+        try {
+            readAhead.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
-        lg.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        // 页缓存关闭时还要按WAL先刷日志，所以日志最后关
         pc.close();
+        // 脏页都写回了，再记一次checkpoint，下次启动不用再看之前的日志
+        logCheckpoint();
+        lg.close();
+    }
+
+    /**
+     * 启动定时checkpoint，interval <= 0 表示不启动，脏页只在淘汰和关闭时写回
+     */
+    public void startCheckpointer(long intervalMillis) {
+        if(intervalMillis <= 0 || checkpointer != null) {
+            return;
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 先把脏页按页号顺序写出去，再写一条checkpoint日志，记下脏页表和写过日志的活跃事务，
+     * 然后删掉恢复用不到的日志段：redo最早从脏页表里最小的recLsn开始，undo最早要回到活跃事务的第一条日志
+     */
+    public void checkpoint() {
+        pc.checkpoint();
+        logCheckpoint();
+    }
+
+    private void logCheckpoint() {
+        // 先取起点再拷两张表，拷贝时漏掉的页和事务，它们的日志都在起点之后
+        long beginLsn = lg.currentLsn();
+        if(beginLsn == lastCheckpointLsn) {
+            // 没有新的日志，只把之前异步提交的状态写进xid文件
+            if(!asyncCommits.isEmpty()) {
+                lg.flush();
+                persistAsyncCommits(beginLsn);
+                tm.flush();
+            }
+            return;
+        }
+        Map<Integer, Long> dirtyPages = pc.dirtyPageTable();
+        Map<Long, long[]> txns = new TreeMap<>();
+        for (Map.Entry<Long, TxnLog> e : activeTxns.entrySet()) {
+            if(!tm.isActive(e.getKey())) {
+                activeTxns.remove(e.getKey(), e.getValue());
+                continue;
+            }
+            TxnLog txn = e.getValue();
+            synchronized (txn) {
+                txns.put(e.getKey(), new long[]{txn.firstLsn, txn.lastLsn});
+            }
+        }
+
+        long truncateLsn = beginLsn;
+        for (long recLsn : dirtyPages.values()) {
+            truncateLsn = Math.min(truncateLsn, recLsn);
+        }
+        for (long[] txn : txns.values()) {
+            truncateLsn = Math.min(truncateLsn, txn[0]);
+        }
+        // 还有ChangeStream没读到的日志也得留着
+        for (ChangeStream cs : changeStreams) {
+            truncateLsn = Math.min(truncateLsn, cs.position());
+        }
+
+        long lsn = lg.log(Recover.checkpointLog(beginLsn, dirtyPages, txns));
+        lg.waitFlushed(lsn);
+        // 提交/撤销日志删掉之前，xid文件里懒写的状态要先落盘
+        persistAsyncCommits(lsn);
+        tm.flush();
+        lg.checkpoint(beginLsn, truncateLsn);
+        lastCheckpointLsn = lg.currentLsn();
+    }
+
+    /**
+     * 写一条事务的日志，logOf拿到这个事务上一条日志的LSN生成日志内容
+     * async的日志不等落盘，见Logger.logAsync
+     */
+    private long log(long xid, LongFunction<byte[]> logOf) {
+        return log(xid, false, logOf);
+    }
+
+    private long log(long xid, boolean async, LongFunction<byte[]> logOf) {
+        // 先登记再写日志，登记的起点不会晚于这个事务的第一条日志
+        TxnLog txn = activeTxns.computeIfAbsent(xid, x -> new TxnLog(lg.currentLsn()));
+        synchronized (txn) {
+            byte[] log = logOf.apply(txn.lastLsn);
+            long lsn = async ? lg.logAsync(log) : lg.log(log);
+            txn.lastLsn = lsn;
+            return lsn;
+        }
+    }
+
+    @Override
+    public void readAhead(Runnable task) {
+        if(!readAhead.isShutdown()) {
+            readAhead.execute(task);
+        }
+    }
+
+    @Override
+    public void flushLog() {
+        lg.flush();
+    }
+
+    @Override
+    public void logCommit(long xid) {
+        if(!activeTxns.containsKey(xid)) {
+            return;
+        }
+        long lsn = log(xid, prevLsn -> Recover.commitLog(xid, prevLsn));
+        lg.waitFlushed(lsn);
+    }
+
+    @Override
+    public void logCommitAsync(long xid) {
+        if(!activeTxns.containsKey(xid)) {
+            // 没写过日志，没有要等落盘的东西
+            tm.commit(xid);
+            return;
+        }
+        pendingAsyncCommits.add(xid);
+        long lsn = log(xid, true, prevLsn -> Recover.commitLog(xid, prevLsn));
+        // 先登记进asyncCommits，activeTxns里的要等endTransaction才移出去，
+        // 中间的checkpoint总能在其中一处看到它，删日志之前把它的提交写进xid文件
+        asyncCommits.put(lsn, xid);
+        // 登记之前这批日志可能已经落盘、回调已经过去了
+        persistAsyncCommits(lg.flushedLsn());
+    }
+
+    // 异步提交的事务在落盘之前，xid文件里的状态和日志都可能还没有它的提交
+    boolean isAsyncCommitPending(long xid) {
+        return pendingAsyncCommits.contains(xid);
+    }
+
+    // 提交日志在durableLsn之前、已经落盘的异步提交，把状态写进xid文件
+    private void persistAsyncCommits(long durableLsn) {
+        Iterator<Map.Entry<Long, Long>> it = asyncCommits.headMap(durableLsn).entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long, Long> commit = it.next();
+            tm.commit(commit.getValue());
+            pendingAsyncCommits.remove(commit.getValue());
+            it.remove();
+        }
     }
 
-    public void logDataItem(Long xid, DataItemImpl di) {
-        byte[] log = Recover.updateLog(xid, di);
-        lg.log(log);
+    @Override
+    public void logAbort(long xid) {
+        if(!activeTxns.containsKey(xid)) {
+            return;
+        }
+        log(xid, prevLsn -> Recover.abortLog(xid, prevLsn));
+    }
+
+    @Override
+    public void endTransaction(long xid) {
+        activeTxns.remove(xid);
+    }
+
+    @Override
+    public ChangeStream openChangeStream(long fromLsn) {
+        ChangeStream cs = new ChangeStream(this, tm, lg.reader(fromLsn));
+        changeStreams.add(cs);
+        return cs;
+    }
+
+    void closeChangeStream(ChangeStream cs) {
+        changeStreams.remove(cs);
+    }
+
+    public void logDataItem(Long xid, DataItemImpl di, int from, int to) {
+        long lsn = log(xid, prevLsn -> Recover.updateLog(xid, prevLsn, di, from, to));
+        Page pg = di.page();
+        pg.lock();
+        try {
+            PageX.setPageLsn(pg, lsn);
+        } finally {
+            pg.unlock();
+        }
     }
 
     public void releaseDataItem(DataItemImpl dataItem) {
+        dataItem.unpinPage();
         super.release(dataItem.getUid());
     }
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short pgno = (short) (uid & (1 << 16 - 1));
-        uid >>>= 32;
-        int offset = (int) uid;
+        int pgno = Types.uidToPgno(uid);
+        int offset = Types.uidToOffset(uid);
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        try {
+            return DataItem.parseDataItem(pg, offset, this);
+        } finally {
+            // 页只在DataItem被引用时钉着，见DataItemImpl.pinPage
+            pg.release();
+        }
     }
 
     @Override
     protected void releaseForCache(DataItem di) {
-        di.page().release();
+        // 没人引用的DataItem早就放开了页，这里没什么要做的
     }
 
     public void initPageOne() {
         int pgno = pc.newPage(PageOne.initRaw());
         assert pgno == 1;
-        Page page = null;
         try {
-            page = pc.getPage(pgno);
+            pageOne = pc.getPage(pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
-        pc.flushPage(page);
+        pc.flushPage(pageOne);
     }
 
     public boolean loadCheckPageOne() {
-        Page pageOne = null;
         try {
             pageOne = pc.getPage(1);
         } catch (Exception e) {
@@ -140,13 +393,19 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     public void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
-        for (int i = 2; i < pageNumber; i++) {
+        for (int i = 2; i <= pageNumber; i++) {
             Page page = null;
             try {
-                page = pc.getPage(pageNumber);
+                page = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
+            page.lock();
+            try {
+                PageX.reinitIfZero(page);
+            } finally {
+                page.unlock();
+            }
             pIndex.add(page.getPageNumber(), PageX.getFreeSpace(page));
 
             page.release();
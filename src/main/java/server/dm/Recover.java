@@ -1,8 +1,12 @@
 package server.dm;
 
 import com.google.common.primitives.Bytes;
+import common.Error;
+import common.SubArray;
 import server.dm.dataItem.DataItem;
 import server.dm.dataItem.DataItemImpl;
+import server.dm.logger.LogReader;
+import server.dm.logger.LogRecord;
 import server.dm.logger.Logger;
 import server.dm.page.Page;
 import server.dm.page.PageX;
@@ -10,238 +14,475 @@ import server.dm.pageCache.PageCache;
 import server.tm.TransactionManager;
 import server.utils.Panic;
 import server.utils.Parser;
+import server.utils.Types;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * 从日志文件中的data部分（这一块就是日志），来获取日志
- * InsertLog [LogType][XID][Pgno][Offset][Raw]
- * UpdateLog [LogType][XID][UID][OldRaw][NewRaw]
+ * InsertLog [LogType][XID][PrevLsn][Pgno][Offset][Raw]
+ * UpdateLog [LogType][XID][PrevLsn][UID][OldRaw][NewRaw]
+ * DeltaUpdateLog [LogType][XID][PrevLsn][UID][DeltaOffset][OldBytes][NewBytes]
+ * DeltaUpdateLog只记DataItem里改动的那一段，DeltaOffset是这一段在DataItem里的偏移，比如删除只改了XMAX的8个字节；
+ * 现在只写DeltaUpdateLog，UpdateLog留着读以前写下的日志
+ * CheckpointLog [LogType][BeginLsn][PageCount][Pgno][RecLsn]...[TxnCount][XID][FirstLsn][LastLsn]...
+ * CommitLog/AbortLog [LogType][XID][PrevLsn]，写过日志的事务结束时写，一定是这个事务的最后一条日志
+ * PrevLsn是同一个事务的上一条日志，-1表示这是第一条，undo顺着它往回走
+ *
+ * 恢复按ARIES的思路分三步：
+ * 1.分析：从最近一次checkpoint的起点往后扫，用checkpoint里的脏页表和事务表打底，
+ *   得到崩溃时的脏页表（页号 -> recLsn）和每个事务的最后一条日志
+ *   xid文件是懒写的，最后一条是提交/撤销日志的事务，照日志补上它的状态，剩下还active的才是要撤销的
+ * 2.redo：从脏页表里最小的recLsn开始重放所有事务的日志，不在脏页表里、早于recLsn、或者早于页LSN的日志直接跳过
+ *   不同页的redo互不依赖：读日志的线程只负责解析，按页号分给固定的redo线程，同一页的日志始终由同一个线程按LSN顺序重放；
+ *   第一次分到某页时提示页缓存预读，redo线程拿页时多半已经在缓存里了
+ * 3.undo：只对崩溃时还处于active的事务，从它的最后一条日志顺着PrevLsn往回撤销，按LSN从大到小处理
+ * 撤销的结果写回之后，把这些事务标记为aborted
  */
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_DELTA_UPDATE = 3;
+    private static final byte LOG_TYPE_COMMIT = 4;
+    private static final byte LOG_TYPE_ABORT = 5;
     private static final int OF_XID = 1;
     private static final int LEN_XID = 8;
+    private static final int OF_PREV_LSN = OF_XID + LEN_XID;
+    private static final int LEN_LSN = 8;
 
-    private static final int OF_PGNO = OF_XID + LEN_XID;
+    private static final int OF_PGNO = OF_PREV_LSN + LEN_LSN;
     private static final int LEN_PGNO = 4;
     private static final int OF_OFFSET = OF_PGNO + LEN_PGNO;
     private static final int LEN_OFFSET = 2;
     private static final int OF_INSERT_RAW = OF_OFFSET + LEN_OFFSET;
 
-    private static final int OF_UID = OF_XID + LEN_XID;
+    private static final int OF_UID = OF_PREV_LSN + LEN_LSN;
     private static final int LEN_UID = 8;
     private static final int OF_UPDATE_RAW = OF_UID + LEN_UID;
 
-    public static byte[] updateLog(Long xid, DataItemImpl di) {
-        byte[] logTypeBytes = new byte[]{LOG_TYPE_UPDATE};
+    private static final int OF_DELTA_OFFSET = OF_UID + LEN_UID;
+    private static final int LEN_DELTA_OFFSET = 2;
+    private static final int OF_DELTA_RAW = OF_DELTA_OFFSET + LEN_DELTA_OFFSET;
+
+    private static final int REDO_QUEUE = 1024;
+
+    /**
+     * 只记DataItem里[from, to)这一段的前后像
+     */
+    public static byte[] updateLog(long xid, long prevLsn, DataItemImpl di, int from, int to) {
+        byte[] logTypeBytes = new byte[]{LOG_TYPE_DELTA_UPDATE};
         byte[] xidBytes = Parser.long2byte(xid);
+        byte[] prevLsnBytes = Parser.long2byte(prevLsn);
         byte[] uidBytes = Parser.long2byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
-        byte[] newRaw = di.getRaw().getData();
-        return Bytes.concat(logTypeBytes, xidBytes, uidBytes, oldRaw, newRaw);
+        byte[] deltaOffsetBytes = Parser.short2byte((short) from);
+        byte[] oldBytes = Arrays.copyOfRange(di.getOldRaw(), from, to);
+        SubArray raw = di.getRaw();
+        byte[] newBytes = Arrays.copyOfRange(raw.raw, raw.start + from, raw.start + to);
+        return Bytes.concat(logTypeBytes, xidBytes, prevLsnBytes, uidBytes, deltaOffsetBytes, oldBytes, newBytes);
     }
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, long prevLsn, Page pg, byte[] raw) {
         byte[] logTypeBytes = new byte[]{LOG_TYPE_INSERT};
         byte[] xidBytes = Parser.long2byte(xid);
+        byte[] prevLsnBytes = Parser.long2byte(prevLsn);
         byte[] pgnoBytes = Parser.int2byte(pg.getPageNumber());
         byte[] offsetBytes = Parser.short2byte(PageX.getFSO(pg));
         byte[] rawBytes = raw;
-        return Bytes.concat(logTypeBytes, xidBytes, pgnoBytes, offsetBytes, rawBytes);
+        return Bytes.concat(logTypeBytes, xidBytes, prevLsnBytes, pgnoBytes, offsetBytes, rawBytes);
     }
 
+    public static byte[] commitLog(long xid, long prevLsn) {
+        return endLog(LOG_TYPE_COMMIT, xid, prevLsn);
+    }
 
-    static class InsertLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] raw;
+    public static byte[] abortLog(long xid, long prevLsn) {
+        return endLog(LOG_TYPE_ABORT, xid, prevLsn);
     }
 
-    static class UpdateLogInfo{
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    private static byte[] endLog(byte type, long xid, long prevLsn) {
+        return Bytes.concat(new byte[]{type}, Parser.long2byte(xid), Parser.long2byte(prevLsn));
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    /**
+     * @param dirtyPages 页号 -> recLsn
+     * @param txns 写过日志的活跃事务 -> [第一条日志的起点, 最后一条日志]
+     */
+    public static byte[] checkpointLog(long beginLsn, Map<Integer, Long> dirtyPages, Map<Long, long[]> txns) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + dirtyPages.size() * 12 + 4 + txns.size() * 24);
+        buf.put(LOG_TYPE_CHECKPOINT).putLong(beginLsn);
+        buf.putInt(dirtyPages.size());
+        for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            buf.putInt(e.getKey()).putLong(e.getValue());
+        }
+        buf.putInt(txns.size());
+        for (Map.Entry<Long, long[]> e : txns.entrySet()) {
+            buf.putLong(e.getKey()).putLong(e.getValue()[0]).putLong(e.getValue()[1]);
+        }
+        return buf.array();
+    }
 
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
-            byte[] log = lg.next();
 
+    /**
+     * @param redoThreads redo线程数，1表示在当前线程串行重放
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
+        Map<Integer, Long> dirtyPages = new HashMap<>();
+        Map<Long, Long> lastLsns = new HashMap<>();
+        analyse(lg, dirtyPages, lastLsns);
+        lastLsns.keySet().removeIf(xid -> !tm.isActive(xid) || resolveEnded(tm, lg, xid, lastLsns.get(xid)));
+        System.out.println("分析log完毕，脏页" + dirtyPages.size() + "个，未完成事务" + lastLsns.size() + "个");
+
+        redo(lg, pc, dirtyPages, redoThreads);
+        System.out.println("重放log（redolog）完毕");
+
+        undo(lg, pc, lastLsns);
+        System.out.println("重放log（undolog）完毕");
+
+        // 撤销没有写日志，先写回再把事务标成aborted，否则下次恢复重做完就撤销不回来了
+        pc.checkpoint();
+        for (long xid : lastLsns.keySet()) {
+            tm.abort(xid);
+        }
+        // 没写过日志的未完成事务和预留的xid不用撤销，直接标成aborted
+        tm.abortUnfinished();
+
+        System.out.println("Recover完毕");
+    }
+
+    // 事务的最后一条日志是提交/撤销日志，说明它已经结束了，只是xid文件还没写，补上状态
+    private static boolean resolveEnded(TransactionManager tm, Logger lg, long xid, long lastLsn) {
+        if(lastLsn < 0) {
+            return false;
+        }
+        LogRecord log = lg.read(lastLsn);
+        if(log == null) {
+            Panic.panic(Error.BadLogFileException());
+        }
+        if(isCommitLog(log)) {
+            tm.commit(xid);
+            return true;
+        }
+        if(isAbortLog(log)) {
+            tm.abort(xid);
+            return true;
+        }
+        return false;
+    }
+
+    private static void analyse(Logger lg, Map<Integer, Long> dirtyPages, Map<Long, Long> lastLsns) {
+        long begin = lg.getCheckpoint();
+        LogReader reader = lg.reader(begin);
+        while(true) {
+            LogRecord log = reader.next();
             if(log == null) {
                 break;
             }
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo iInfo = parserByte2InsetLogInfo(log);
-                pgno = iInfo.pgno;
-            } else {
-                UpdateLogInfo uInfo = parserByte2UpdateLogInfo(log);
-                pgno = uInfo.pgno;
+            if(isCheckpointLog(log)) {
+                int index = 1;
+                if(log.getLong(index) != begin) {
+                    continue;
+                }
+                index += LEN_LSN;
+                int pages = log.getInt(index);
+                index += 4;
+                for (int i = 0; i < pages; i++) {
+                    dirtyPages.merge(log.getInt(index), log.getLong(index + 4), Math::min);
+                    index += 12;
+                }
+                int txns = log.getInt(index);
+                index += 4;
+                for (int i = 0; i < txns; i++) {
+                    lastLsns.merge(log.getLong(index), log.getLong(index + 16), Math::max);
+                    index += 24;
+                }
+                continue;
             }
-            maxPgno = Math.max(pgno, maxPgno);
-        }
-        if(maxPgno == 0) {
-            maxPgno = 1;
+            if(!isEndLog(log)) {
+                dirtyPages.putIfAbsent(pgnoOf(log), log.lsn());
+            }
+            lastLsns.merge(xidOf(log), log.lsn(), Math::max);
         }
+        reader.close();
+    }
 
-        pc.truncateyByPgno(maxPgno);
-        System.out.println("删除未记录log的数据完毕");
+    // 下面这些直接从日志的读缓冲上取字段，不拷贝，ChangeStream也用它们解析日志
 
-        redoRedoLog(tm, lg, pc);
-        System.out.println("重放log（redolog）完毕");
+    static boolean isInsertLog(LogRecord log) {
+        return log.getByte(0) == LOG_TYPE_INSERT;
+    }
 
-        redoUndoLog(tm, lg, pc);
-        System.out.println("重放log（undolog）完毕");
+    private static boolean isDeltaUpdateLog(LogRecord log) {
+        return log.getByte(0) == LOG_TYPE_DELTA_UPDATE;
+    }
 
+    static boolean isCheckpointLog(LogRecord log) {
+        return log.getByte(0) == LOG_TYPE_CHECKPOINT;
+    }
 
-        System.out.println("Recover完毕");
+    static boolean isCommitLog(LogRecord log) {
+        return log.getByte(0) == LOG_TYPE_COMMIT;
     }
 
+    static boolean isAbortLog(LogRecord log) {
+        return log.getByte(0) == LOG_TYPE_ABORT;
+    }
 
+    // 提交/撤销日志，不改页
+    static boolean isEndLog(LogRecord log) {
+        return isCommitLog(log) || isAbortLog(log);
+    }
 
-    private static UpdateLogInfo parserByte2UpdateLogInfo(byte[] log) {
-        UpdateLogInfo updateLogInfo = new UpdateLogInfo();
-        // todo 检查其他文件可能存在的数组长度错误
-        updateLogInfo.xid = Parser.byte2long(Arrays.copyOfRange(log, OF_XID, OF_XID + LEN_XID));
-        byte[] uid = Arrays.copyOfRange(log, OF_UID, OF_UID + LEN_UID);
-        updateLogInfo.pgno = (int) (ByteBuffer.wrap(uid).getLong() >>> 32);
-        updateLogInfo.offset = (short) (ByteBuffer.wrap(uid).getLong() & ((1 << 16) - 1));
-        int rawLength = (log.length - OF_UPDATE_RAW) / 2;
-        updateLogInfo.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + rawLength);
-        updateLogInfo.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + rawLength, OF_UPDATE_RAW + rawLength * 2);
-        return updateLogInfo;
+    static long xidOf(LogRecord log) {
+        return log.getLong(OF_XID);
     }
 
-    private static InsertLogInfo parserByte2InsetLogInfo(byte[] log) {
-        InsertLogInfo insertLogInfo = new InsertLogInfo();
-        insertLogInfo.xid = Parser.byte2long(Arrays.copyOfRange(log, OF_XID, OF_XID + LEN_XID));
-        insertLogInfo.pgno = Parser.byte2int(Arrays.copyOfRange(log, OF_PGNO, OF_PGNO + LEN_PGNO));
-        insertLogInfo.offset = Parser.byte2short(Arrays.copyOfRange(log, OF_OFFSET, OF_OFFSET + LEN_OFFSET));
-        insertLogInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
-        return insertLogInfo;
+    static long prevLsnOf(LogRecord log) {
+        return log.getLong(OF_PREV_LSN);
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static int pgnoOf(LogRecord log) {
+        if(isInsertLog(log)) {
+            return log.getInt(OF_PGNO);
+        }
+        return (int) (log.getLong(OF_UID) >>> 32);
     }
 
-    private static void redoRedoLog(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
+    // raw要写到页里的位置
+    private static short offsetOf(LogRecord log) {
+        if(isInsertLog(log)) {
+            return log.getShort(OF_OFFSET);
+        }
+        short offset = (short) (log.getLong(OF_UID) & ((1 << 16) - 1));
+        if(isDeltaUpdateLog(log)) {
+            offset += log.getShort(OF_DELTA_OFFSET);
+        }
+        return offset;
+    }
 
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo insertLogInfo = parserByte2InsetLogInfo(log);
-                if(tm.isActive(insertLogInfo.xid)) continue;
+    // insert日志是raw的开头，update日志是旧值的开头，新值紧跟在旧值后面
+    private static int rawStartOf(LogRecord log) {
+        if(isInsertLog(log)) {
+            return OF_INSERT_RAW;
+        }
+        return isDeltaUpdateLog(log) ? OF_DELTA_RAW : OF_UPDATE_RAW;
+    }
 
-                redoInsertLog(insertLogInfo, pc);
+    // insert日志是整条raw的长度，update日志是旧值和新值各自的长度
+    private static int rawLengthOf(LogRecord log) {
+        if(isInsertLog(log)) {
+            return log.size() - OF_INSERT_RAW;
+        }
+        return (log.size() - rawStartOf(log)) / 2;
+    }
 
-            } else {
-                UpdateLogInfo updateLogInfo = parserByte2UpdateLogInfo(log);
-                if(tm.isActive(updateLogInfo.xid)) continue;
+    static Change changeOf(LogRecord log) {
+        int start = rawStartOf(log);
+        int length = rawLengthOf(log);
+        if(isInsertLog(log)) {
+            long uid = Types.addressToUid(pgnoOf(log), offsetOf(log));
+            byte[] after = log.toBytes(start + DataItemImpl.OF_DATA, length - DataItemImpl.OF_DATA);
+            return new Change(Change.Type.INSERT, xidOf(log), log.lsn(), uid, 0, null, after);
+        }
+        int itemOffset = isDeltaUpdateLog(log) ? log.getShort(OF_DELTA_OFFSET) : 0;
+        // 改动里带着的DataItem头不算数据
+        int skip = Math.max(0, DataItemImpl.OF_DATA - itemOffset);
+        byte[] before = log.toBytes(start + skip, length - skip);
+        byte[] after = log.toBytes(start + length + skip, length - skip);
+        return new Change(Change.Type.UPDATE, xidOf(log), log.lsn(), log.getLong(OF_UID),
+                itemOffset + skip - DataItemImpl.OF_DATA, before, after);
+    }
 
-                redoUpdateLog(updateLogInfo, pc);
-            }
+    private static void redo(Logger lg, PageCache pc, Map<Integer, Long> dirtyPages, int threads) {
+        if(dirtyPages.isEmpty()) {
+            return;
+        }
+        long redoLsn = Long.MAX_VALUE;
+        int maxPgno = 0;
+        for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            redoLsn = Math.min(redoLsn, e.getValue());
+            maxPgno = Math.max(maxPgno, e.getKey());
+        }
+        // 日志里记录了、但是崩溃前还没来得及写进文件的页，先把文件补齐
+        if(maxPgno > pc.getPageNumber()) {
+            pc.truncateyByPgno(maxPgno);
+        }
+
+        RedoWorkers workers = threads > 1 ? new RedoWorkers(threads) : null;
+        Set<Integer> prefetched = new HashSet<>();
+        LogReader reader = lg.reader(redoLsn);
+        while(true) {
+            LogRecord log = reader.next();
+            if(log == null) break;
+            if(isCheckpointLog(log) || isEndLog(log)) continue;
 
+            int pgno = pgnoOf(log);
+            if(!needRedo(dirtyPages, pgno, log.lsn())) continue;
+
+            if(workers == null) {
+                redoLog(log, pc);
+                continue;
+            }
+            if(prefetched.add(pgno)) {
+                pc.prefetch(pgno);
+            }
+            // 读缓冲马上会被下一条日志复用，交给redo线程的要拷一份
+            LogRecord copy = log.copy();
+            workers.submit(pgno, () -> redoLog(copy, pc));
+        }
+        reader.close();
+        if(workers != null) {
+            workers.finish();
         }
     }
 
-    private static void redoInsertLog(InsertLogInfo insertLogInfo, PageCache pc) {
-        int pgno = insertLogInfo.pgno;
-        short offset = insertLogInfo.offset;
+    private static class RedoWorkers {
+        private static final Runnable STOP = () -> {};
+
+        private List<BlockingQueue<Runnable>> queues;
+        private List<Thread> threads;
+
+        RedoWorkers(int n) {
+            queues = new ArrayList<>(n);
+            threads = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(REDO_QUEUE);
+                Thread t = new Thread(() -> work(queue), "redo-" + i);
+                t.setDaemon(true);
+                queues.add(queue);
+                threads.add(t);
+                t.start();
+            }
+        }
 
-        Page page = null;
-        try {
-            page = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+        private static void work(BlockingQueue<Runnable> queue) {
+            while(true) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                    return;
+                }
+                if(task == STOP) {
+                    return;
+                }
+                task.run();
+            }
         }
-        try {
-            PageX.recoverInsert(page, insertLogInfo.raw, offset);
-        } finally {
-            page.release();
+
+        // 队列满了就让读日志的线程等着，解析出来的日志不会在内存里越堆越多
+        void submit(int pgno, Runnable task) {
+            try {
+                queues.get(Math.floorMod(pgno, queues.size())).put(task);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
         }
 
+        void finish() {
+            try {
+                for (BlockingQueue<Runnable> queue : queues) {
+                    queue.put(STOP);
+                }
+                for (Thread t : threads) {
+                    t.join();
+                }
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
     }
 
-    private static void redoUpdateLog(UpdateLogInfo updateLogInfo, PageCache pc) {
-        int pgno = updateLogInfo.pgno;
-        short offset = updateLogInfo.offset;
+    private static boolean needRedo(Map<Integer, Long> dirtyPages, int pgno, long lsn) {
+        Long recLsn = dirtyPages.get(pgno);
+        return recLsn != null && lsn >= recLsn;
+    }
 
+    private static Page getPage(PageCache pc, int pgno) {
         Page page = null;
         try {
             page = pc.getPage(pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
+        return page;
+    }
+
+    // 页LSN比这条日志新，说明写回的时候已经带上了这次改动；raw直接从日志拷进页里
+    private static void redoLog(LogRecord log, PageCache pc) {
+        Page page = getPage(pc, pgnoOf(log));
         try {
-            PageX.recoverUpdate(page, updateLogInfo.newRaw, offset);
+            if(PageX.getPageLsn(page) > log.lsn()) {
+                return;
+            }
+            short offset = offsetOf(log);
+            int length = rawLengthOf(log);
+            if(isInsertLog(log)) {
+                log.copyTo(OF_INSERT_RAW, page.getData(), offset, length);
+                PageX.recoverInsert(page, offset, length);
+            } else {
+                log.copyTo(rawStartOf(log) + length, page.getData(), offset, length);
+                page.setDirty(true);
+            }
+            PageX.setPageLsn(page, log.lsn());
         } finally {
             page.release();
         }
     }
 
-    private static void redoUndoLog(TransactionManager tm, Logger lg, PageCache pc) {
-        // 只能倒序处理，倒着来拆
-        Deque<byte[]> stack = new LinkedList<>();
-
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if (log == null) {
-                break;
+    private static void undo(Logger lg, PageCache pc, Map<Long, Long> lastLsns) {
+        // 每个未完成事务同时只有一条待撤销的日志在集合里，按LSN从大到小处理
+        TreeSet<Long> toUndo = new TreeSet<>();
+        for (long lsn : lastLsns.values()) {
+            if(lsn >= 0) {
+                toUndo.add(lsn);
             }
-            stack.push(log);
         }
 
-        while(!stack.isEmpty()) {
-            byte[] log = stack.pop();
+        while(!toUndo.isEmpty()) {
+            LogRecord log = lg.read(toUndo.pollLast());
+            if(log == null) {
+                Panic.panic(Error.BadLogFileException());
+            }
             if(isInsertLog(log)) {
-                InsertLogInfo insertLogInfo = parserByte2InsetLogInfo(log);
-                if(!tm.isActive(insertLogInfo.xid)) {
-                    continue;
-                }
-                undoInsertLog(insertLogInfo, pc);
+                undoInsertLog(log, pc);
             } else {
-                UpdateLogInfo updateLogInfo = parserByte2UpdateLogInfo(log);
-                if(!tm.isActive(updateLogInfo.xid)) {
-                    continue;
-                }
-                undoUpdateLog(updateLogInfo, pc);
+                undoUpdateLog(log, pc);
+            }
+            long prevLsn = prevLsnOf(log);
+            if(prevLsn >= 0) {
+                toUndo.add(prevLsn);
             }
         }
     }
 
-    private static void undoInsertLog(InsertLogInfo insertLogInfo, PageCache pc) {
-        DataItem.setDataItemRawInvalid(insertLogInfo.raw);
-        redoInsertLog(insertLogInfo, pc);
-
-    }
-
-    private static void undoUpdateLog(UpdateLogInfo updateLogInfo, PageCache pc) {
-        int pgno = updateLogInfo.pgno;
-        short offset = updateLogInfo.offset;
-
-        Page page = null;
+    private static void undoInsertLog(LogRecord log, PageCache pc) {
+        byte[] raw = log.toBytes(OF_INSERT_RAW, rawLengthOf(log));
+        DataItem.setDataItemRawInvalid(raw);
+        Page page = getPage(pc, pgnoOf(log));
         try {
-            page = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+            PageX.recoverInsert(page, raw, offsetOf(log));
+        } finally {
+            page.release();
         }
+    }
+
+    private static void undoUpdateLog(LogRecord log, PageCache pc) {
+        byte[] oldRaw = log.toBytes(rawStartOf(log), rawLengthOf(log));
+        Page page = getPage(pc, pgnoOf(log));
         try {
-            PageX.recoverUpdate(page, updateLogInfo.oldRaw, offset);
+            PageX.recoverUpdate(page, oldRaw, offsetOf(log));
         } finally {
             page.release();
         }
@@ -29,6 +29,8 @@ public class DataItemImpl implements DataItem{
     private Page pg;
     private long uid;
     private DataManagerImpl dm;
+    // 有人引用时才钉着所在的页，缓存里没人用的DataItem不占页缓存
+    private int refs;
 
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
@@ -50,22 +52,55 @@ public class DataItemImpl implements DataItem{
         return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
     }
 
+    /**
+     * 改之前登记成页的写者，到after写完日志（或者unBefore改回去）为止，
+     * 写回不会拷到改了一半、还没有日志的页
+     */
     @Override
     public void before() {
         wLock.lock();
-        pg.setDirty(true);
+        pg.lock();
+        try {
+            pg.addWriter();
+            pg.setDirty(true);
+        } finally {
+            pg.unlock();
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        endWrite();
         wLock.unlock();
     }
 
+    private void endWrite() {
+        pg.lock();
+        try {
+            pg.removeWriter();
+        } finally {
+            pg.unlock();
+        }
+    }
+
     @Override
     public void after(Long xid) {
-        dm.logDataItem(xid, this);
+        // 和前像比出改动的那一段，日志里只记这一段
+        int from = 0;
+        int to = oldRaw.length;
+        while(from < to && oldRaw[from] == raw.raw[raw.start + from]) {
+            from++;
+        }
+        while(to > from && oldRaw[to - 1] == raw.raw[raw.start + to - 1]) {
+            to--;
+        }
+        // 有写者的页不会被写回，before标的脏和recLsn一直有效
+        if(from < to) {
+            dm.logDataItem(xid, this, from, to);
+        }
+        endWrite();
         wLock.unlock();
     }
 
@@ -74,6 +109,27 @@ public class DataItemImpl implements DataItem{
         dm.releaseDataItem(this);
     }
 
+    /**
+     * 拿到引用时钉住所在的页
+     * 没人用的时候页可能被换出去又读进来，换成了新的Page就重新指过去
+     */
+    public synchronized void pinPage() {
+        if(refs++ > 0) {
+            return;
+        }
+        Page page = dm.pc.getPage(pg.getPageNumber());
+        if(page != pg) {
+            raw = new SubArray(page.getData(), raw.start, raw.end);
+            pg = page;
+        }
+    }
+
+    public synchronized void unpinPage() {
+        if(--refs == 0) {
+            pg.release();
+        }
+    }
+
     @Override
     public void lock() {
         wLock.lock();
@@ -0,0 +1,72 @@
+package server.dm.logger;
+
+import common.Error;
+import server.utils.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 日志data部分的压缩
+ * 压缩过的data结构：[RawLength][Deflated]
+ * 小日志压缩省不了多少还白花CPU，直接跳过；压完不比原来小的也按原样存
+ */
+class LogCodec {
+    static final int MIN_COMPRESS_SIZE = 256;
+    private static final int LEN_RAW_LENGTH = 4;
+
+    // Deflater要自己的本地内存，每个写日志的线程复用一个
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    /**
+     * 返回压缩后的data，不值得压缩时返回null
+     */
+    static byte[] compress(byte[] data) {
+        if(data.length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length];
+        int len = deflater.deflate(out, LEN_RAW_LENGTH, out.length - LEN_RAW_LENGTH);
+        if(!deflater.finished()) {
+            return null;
+        }
+        ByteBuffer.wrap(out).putInt(0, data.length);
+        byte[] packed = new byte[LEN_RAW_LENGTH + len];
+        System.arraycopy(out, 0, packed, 0, packed.length);
+        return packed;
+    }
+
+    static int rawLength(byte[] src, int offset) {
+        return ByteBuffer.wrap(src).getInt(offset);
+    }
+
+    /**
+     * 把src里[offset, offset+length)这段压缩过的data解压到dst开头，dst至少要有rawLength那么大
+     */
+    static void decompress(Inflater inflater, byte[] src, int offset, int length, byte[] dst) {
+        int rawLength = rawLength(src, offset);
+        inflater.reset();
+        inflater.setInput(src, offset + LEN_RAW_LENGTH, length - LEN_RAW_LENGTH);
+        try {
+            int n = 0;
+            while(n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(dst, n, rawLength - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if(n != rawLength) {
+                Panic.panic(Error.BadLogFileException());
+            }
+        } catch (DataFormatException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package server.dm.logger;
+
+import server.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+
+/**
+ * 从某个LSN开始顺序读日志
+ * 每次从段文件里读一大块到读缓冲，日志直接在缓冲上校验和解析，不为每条日志分配内存
+ * next返回的LogRecord是复用的，只在读下一条之前有效；压缩过的日志解压到复用的解压缓冲里
+ *
+ * 只读已经落盘的部分：读到末尾、半条日志或者校验不过的日志就返回null，位置不动，
+ * 之后有新的日志落盘了，再调next可以接着读
+ */
+public class LogReader {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private LoggerImpl logger;
+    private LogSegment seg;
+    private ByteBuffer buf;
+    // 读缓冲开头对应的段内偏移
+    private long bufOffset;
+    // 下一条日志在读缓冲里的位置
+    private int pos;
+
+    private LogRecord record;
+    private CRC32C crc;
+    private Inflater inflater;
+    private ByteBuffer inflated;
+
+    LogReader(LoggerImpl logger, long lsn) {
+        this.logger = logger;
+        this.seg = logger.segmentOf(lsn);
+        this.bufOffset = seg.offsetOf(Math.max(lsn, seg.baseLsn));
+        this.buf = ByteBuffer.allocate(CHUNK_SIZE);
+        this.buf.limit(0);
+        this.record = new LogRecord();
+        this.crc = new CRC32C();
+    }
+
+    // 读完了要调close，放掉解压用的本地内存
+    public void close() {
+        if(inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    // 下一次next读到的日志的LSN
+    public long position() {
+        return seg.lsnOf(bufOffset + pos);
+    }
+
+    public LogRecord next() {
+        while(true) {
+            int avail = buf.limit() - pos;
+            if(avail >= LoggerImpl.OF_DATA) {
+                int size = LoggerImpl.lengthOf(buf.getInt(pos + LoggerImpl.OF_SIZE));
+                if(avail >= LoggerImpl.OF_DATA + size) {
+                    return check(size) ? record : null;
+                }
+            }
+            if(fill()) {
+                continue;
+            }
+            // 这一段读完了，下一段必须正好接在后面
+            if(avail > 0) {
+                return null;
+            }
+            LogSegment next = logger.segmentAt(position());
+            if(next == null || next == seg) {
+                return null;
+            }
+            seg = next;
+            bufOffset = LogSegment.LEN_SEGMENT_HEADER;
+            pos = 0;
+            buf.limit(0);
+        }
+    }
+
+    private boolean check(int size) {
+        long lsn = seg.lsnOf(bufOffset + pos);
+        byte[] raw = buf.array();
+        crc.reset();
+        crc.update(raw, pos + LoggerImpl.OF_SIZE, LoggerImpl.OF_CRC - LoggerImpl.OF_SIZE);
+        crc.update(raw, pos + LoggerImpl.OF_LSN, LoggerImpl.OF_DATA - LoggerImpl.OF_LSN + size);
+        if(buf.getInt(pos + LoggerImpl.OF_CRC) != (int) crc.getValue()
+                || buf.getLong(pos + LoggerImpl.OF_LSN) != lsn) {
+            return false;
+        }
+        long nextLsn = lsn + LoggerImpl.OF_DATA + size;
+        if(LoggerImpl.isCompressed(buf.getInt(pos + LoggerImpl.OF_SIZE))) {
+            inflate(raw, pos + LoggerImpl.OF_DATA, size);
+            record.wrap(inflated, 0, LogCodec.rawLength(raw, pos + LoggerImpl.OF_DATA), lsn, nextLsn);
+        } else {
+            record.wrap(buf, pos + LoggerImpl.OF_DATA, size, lsn, nextLsn);
+        }
+        pos += LoggerImpl.OF_DATA + size;
+        return true;
+    }
+
+    private void inflate(byte[] src, int offset, int length) {
+        int rawLength = LogCodec.rawLength(src, offset);
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+        if(inflated == null || inflated.capacity() < rawLength) {
+            inflated = ByteBuffer.allocate(Math.max(rawLength, LogCodec.MIN_COMPRESS_SIZE * 16));
+        }
+        LogCodec.decompress(inflater, src, offset, length, inflated.array());
+    }
+
+    /**
+     * 把还没读完的部分挪到读缓冲开头，后面接着从文件里读，一条日志比读缓冲还大时把缓冲放大
+     * 这一段已经没有新的数据可读时返回false
+     */
+    private boolean fill() {
+        long end = logger.readLimit(seg);
+        int avail = buf.limit() - pos;
+        if(avail >= LoggerImpl.OF_DATA) {
+            // 段尾的半条日志size可能是乱的，超出段里剩下的数据就不放大
+            long need = LoggerImpl.OF_DATA + (long) LoggerImpl.lengthOf(buf.getInt(pos + LoggerImpl.OF_SIZE));
+            if(need > buf.capacity() && need <= end - bufOffset - pos) {
+                ByteBuffer bigger = ByteBuffer.allocate((int) need);
+                bigger.put(buf.array(), pos, avail);
+                buf = bigger;
+                bufOffset += pos;
+                pos = 0;
+            }
+        }
+        if(pos > 0) {
+            System.arraycopy(buf.array(), pos, buf.array(), 0, avail);
+            bufOffset += pos;
+            pos = 0;
+        }
+
+        long fileOffset = bufOffset + avail;
+        int len = (int) Math.min(buf.capacity() - avail, end - fileOffset);
+        if(len <= 0) {
+            buf.limit(avail);
+            return false;
+        }
+        buf.limit(avail + len);
+        buf.position(avail);
+        try {
+            while(buf.hasRemaining()) {
+                if(seg.fc.read(buf, fileOffset + buf.position() - avail) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        buf.limit(buf.position());
+        buf.position(0);
+        return buf.limit() > avail;
+    }
+}
@@ -0,0 +1,75 @@
+package server.dm.logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一条日志的data部分，只是读缓冲上的一段视图，不拷贝数据
+ * LogReader返回的LogRecord是复用的，读下一条日志之后就失效了，要留着用就copy()一份
+ * 各个get方法的下标都从data部分的开头算
+ */
+public final class LogRecord {
+    private ByteBuffer buf;
+    private int start;
+    private int size;
+    private long lsn;
+    private long nextLsn;
+
+    void wrap(ByteBuffer buf, int start, int size, long lsn, long nextLsn) {
+        this.buf = buf;
+        this.start = start;
+        this.size = size;
+        this.lsn = lsn;
+        this.nextLsn = nextLsn;
+    }
+
+    static LogRecord of(byte[] data, long lsn, long nextLsn) {
+        LogRecord record = new LogRecord();
+        record.wrap(ByteBuffer.wrap(data), 0, data.length, lsn, nextLsn);
+        return record;
+    }
+
+    public long lsn() {
+        return lsn;
+    }
+
+    // 紧跟在这条日志后面的那条日志的LSN
+    public long nextLsn() {
+        return nextLsn;
+    }
+
+    // data部分的长度，压缩过的日志是解压后的长度
+    public int size() {
+        return size;
+    }
+
+    public byte getByte(int index) {
+        return buf.get(start + index);
+    }
+
+    public short getShort(int index) {
+        return buf.getShort(start + index);
+    }
+
+    public int getInt(int index) {
+        return buf.getInt(start + index);
+    }
+
+    public long getLong(int index) {
+        return buf.getLong(start + index);
+    }
+
+    public void copyTo(int from, byte[] dst, int dstOffset, int length) {
+        System.arraycopy(buf.array(), start + from, dst, dstOffset, length);
+    }
+
+    public byte[] toBytes(int from, int length) {
+        byte[] bytes = new byte[length];
+        copyTo(from, bytes, 0, length);
+        return bytes;
+    }
+
+    // 拷出一条独立的日志，不再受读缓冲复用的影响
+    public LogRecord copy() {
+        return of(toBytes(0, size), lsn, nextLsn);
+    }
+}
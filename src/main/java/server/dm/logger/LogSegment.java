@@ -0,0 +1,204 @@
+package server.dm.logger;
+
+import com.google.common.primitives.Bytes;
+import common.Error;
+import server.utils.Panic;
+import server.utils.Parser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 一个日志段文件：[SegmentHeader][Log1][Log2]...
+ * SegmentHeader结构：[magic][baseLsn][headerCrc]，crc只算magic和baseLsn
+ * 文件名是 路径.baseLsn.log，baseLsn补齐到20位，按文件名排序就是日志流的顺序
+ * 段内偏移 = LSN - baseLsn + 段头长度
+ */
+class LogSegment {
+    private static final int SEGMENT_MAGIC = 0x4D594C47;
+    private static final int OF_MAGIC = 0;
+    private static final int OF_BASE_LSN = OF_MAGIC + 4;
+    private static final int OF_HEADER_CRC = OF_BASE_LSN + 8;
+    static final int LEN_SEGMENT_HEADER = OF_HEADER_CRC + 4;
+
+    private static final int LEN_BASE_LSN_NAME = 20;
+
+    final long baseLsn;
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel fc;
+    // 文件里有效日志的末尾，只有写日志线程和启动时会改
+    volatile long size;
+
+    private LogSegment(long baseLsn, File file, RandomAccessFile raf, long size) {
+        this.baseLsn = baseLsn;
+        this.file = file;
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.size = size;
+    }
+
+    static File fileOf(String path, long baseLsn) {
+        return new File(path + "." + String.format("%0" + LEN_BASE_LSN_NAME + "d", baseLsn) + LoggerImpl.LOG_SUFFIX);
+    }
+
+    /**
+     * 按日志流顺序列出path下所有的日志段文件
+     */
+    static List<File> list(String path) {
+        File prefix = new File(path);
+        File dir = prefix.getAbsoluteFile().getParentFile();
+        String head = prefix.getName() + ".";
+        List<File> files = new ArrayList<>();
+        File[] all = dir == null ? null : dir.listFiles();
+        if(all == null) {
+            return files;
+        }
+        for (File f : all) {
+            String name = f.getName();
+            if(name.length() != head.length() + LEN_BASE_LSN_NAME + LoggerImpl.LOG_SUFFIX.length()
+                    || !name.startsWith(head) || !name.endsWith(LoggerImpl.LOG_SUFFIX)) {
+                continue;
+            }
+            String lsn = name.substring(head.length(), head.length() + LEN_BASE_LSN_NAME);
+            if(lsn.chars().allMatch(Character::isDigit)) {
+                files.add(f);
+            }
+        }
+        files.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    static LogSegment create(String path, long baseLsn) {
+        return create(fileOf(path, baseLsn), baseLsn);
+    }
+
+    private static LogSegment create(File file, long baseLsn) {
+        try {
+            if(!file.createNewFile()) {
+                Panic.panic(Error.FileExistsException());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException());
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+
+        LogSegment seg = new LogSegment(baseLsn, file, raf, LEN_SEGMENT_HEADER);
+        try {
+            seg.fc.write(ByteBuffer.wrap(header(baseLsn)), 0);
+            seg.fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return seg;
+    }
+
+    /**
+     * @param last 是不是最后一段。换段时新段刚建好、段头还没落盘就崩溃的话，最后一段只有不完整的段头，
+     *             里面不可能有日志，按文件名里的baseLsn重建；前面的段不完整就是日志坏了
+     */
+    static LogSegment open(File file, boolean last) {
+        if(!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException());
+        }
+        RandomAccessFile raf = null;
+        long length = 0;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            length = raf.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        byte[] header = new byte[LEN_SEGMENT_HEADER];
+        if(length >= LEN_SEGMENT_HEADER) {
+            try {
+                raf.getChannel().read(ByteBuffer.wrap(header), 0);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        if(length < LEN_SEGMENT_HEADER || !checkHeader(header)) {
+            if(!last || length > LEN_SEGMENT_HEADER) {
+                Panic.panic(Error.BadLogFileException());
+            }
+            return recreate(file, raf);
+        }
+        long baseLsn = Parser.byte2long(Arrays.copyOfRange(header, OF_BASE_LSN, OF_HEADER_CRC));
+        return new LogSegment(baseLsn, file, raf, length);
+    }
+
+    private static boolean checkHeader(byte[] header) {
+        CRC32C crc = new CRC32C();
+        crc.update(header, OF_MAGIC, OF_HEADER_CRC);
+        return Parser.byte2int(Arrays.copyOfRange(header, OF_MAGIC, OF_BASE_LSN)) == SEGMENT_MAGIC
+                && Parser.byte2int(Arrays.copyOfRange(header, OF_HEADER_CRC, LEN_SEGMENT_HEADER)) == (int) crc.getValue();
+    }
+
+    private static LogSegment recreate(File file, RandomAccessFile raf) {
+        String name = file.getName();
+        int end = name.length() - LoggerImpl.LOG_SUFFIX.length();
+        long baseLsn = Long.parseLong(name.substring(end - LEN_BASE_LSN_NAME, end));
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(!file.delete()) {
+            Panic.panic(Error.FileCannotRWException());
+        }
+        return create(file, baseLsn);
+    }
+
+    private static byte[] header(long baseLsn) {
+        byte[] header = Bytes.concat(Parser.int2byte(SEGMENT_MAGIC), Parser.long2byte(baseLsn));
+        CRC32C crc = new CRC32C();
+        crc.update(header);
+        return Bytes.concat(header, Parser.int2byte((int) crc.getValue()));
+    }
+
+    long lsnOf(long offset) {
+        return baseLsn + offset - LEN_SEGMENT_HEADER;
+    }
+
+    long offsetOf(long lsn) {
+        return lsn - baseLsn + LEN_SEGMENT_HEADER;
+    }
+
+    long endLsn() {
+        return lsnOf(size);
+    }
+
+    void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void delete() {
+        close();
+        if(!file.delete()) {
+            Panic.panic(Error.FileCannotRWException());
+        }
+    }
+}
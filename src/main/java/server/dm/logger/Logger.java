@@ -2,80 +2,48 @@ package server.dm.logger;
 
 import common.Error;
 import server.utils.Panic;
-import server.utils.Parser;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
 
 public interface Logger {
-    void log(byte[] data);
-    void truncate(long position);
-    byte[] next();
-    void rewind();
+    // 追加一条日志，返回它的LSN，返回时不保证已经落盘
+    long log(byte[] data);
+    // 追加一条不用等落盘的日志（异步提交），它落盘之前写日志线程会按flushDelay攒批
+    long logAsync(byte[] data);
+    // 等到LSN为lsn的这条日志以及之前的日志都落盘
+    void waitFlushed(long lsn);
+    // 目前为止追加的日志的末尾，也就是下一条日志的起点
+    long currentLsn();
+    // 已经落盘的日志的末尾，LSN比它小的日志都已经落盘
+    long flushedLsn();
+    // 每批日志落盘后由写日志线程回调，参数是新的flushedLsn
+    void setFlushListener(LongConsumer listener);
+    void truncate(long lsn);
+    // 从lsn开始顺序读日志，lsn比最早的段还早就从最早的段开始
+    LogReader reader(long lsn);
+    // 读LSN为lsn的那条日志，返回的LogRecord不会被复用
+    LogRecord read(long lsn);
+    // 等到目前为止追加的日志都落盘
+    void flush();
+    // 最近一次checkpoint的起点LSN，没有做过checkpoint时是0
+    long getCheckpoint();
+    // 记下checkpoint的起点，删掉整段都在truncateLsn之前的日志段
+    void checkpoint(long lsn, long truncateLsn);
     void close();
 
     public static LoggerImpl create(String path) {
-        File file = new File(path + LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!file.createNewFile()) {
-                Panic.panic(Error.FileExistsException());
-            }
-        } catch (IOException e) {
-            Panic.panic(e);
+        if(!LogSegment.list(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException());
         }
-
-        if(!file.canRead() || !file.canWrite()) {
-            Panic.panic(Error.FileNotExistsException());
-        }
-
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        return new LoggerImpl(path, LogSegment.create(path, 0));
     }
 
     public static LoggerImpl open(String path) {
-        File file = new File(path + LoggerImpl.LOG_SUFFIX);
-
-        if(!file.exists()) {
+        if(LogSegment.list(path).isEmpty()) {
             Panic.panic(Error.FileNotExistsException());
         }
 
-        if(!file.canRead() || !file.canWrite()) {
-            Panic.panic(Error.FileCannotRWException());
-        }
-
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        LoggerImpl logger = new LoggerImpl(raf, fc);
+        LoggerImpl logger = new LoggerImpl(path);
         logger.init();
 
         return logger;
@@ -1,220 +1,550 @@
 package server.dm.logger;
 
 import com.google.common.primitives.Bytes;
-import common.Error;
 import server.utils.Panic;
 import server.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
 
 
 /**
- * Log文件结构：[xCheckSum][Log1][Log2][Log3]...[BadTail]
- * Log结构：[size][checkSum][data]
+ * 日志由若干段文件组成，段结构见LogSegment
+ * Log结构：[size][crc][lsn][data]
+ * size的最高位是压缩标记，为1时data是压缩过的，结构见LogCodec；打开压缩后只压大日志
  *
- * checksum计算规则：
- * 1.总的xCheckSum在计算时会计算所有位
- * 2.各log的checkSum只会计算自己的data部分
+ * LSN是日志流里的逻辑偏移，不算段头：一条日志的LSN是它开始处的偏移，单调递增，跨段连续
+ * 已落盘的位置flushedLsn是最后一条落盘日志的结束处，LSN小于它的日志都已经落盘
+ *
+ * 校验规则：
+ * 1.各log的crc用CRC32C算size、lsn和data，lsn必须和它在流里的位置对得上，旧数据残留不会被当成日志
+ * 2.写满的段在换段前已经fsync过，启动时只需要从最后一段的段头往后扫到第一条校验不过的日志，后面的截掉
+ * 3.新段建好、段头还没落盘就崩溃的话，最后一段的段头不完整，打开时按文件名重建这一段
+ *
+ * 组提交：
+ * 1.log()只把日志追加到内存里的暂存缓冲，返回这条日志的LSN
+ * 2.写日志线程把整个暂存缓冲换出来，一次write顺序追加到当前段尾，整批只fsync一次，段写满了就换新段
+ * 3.需要持久化的调用方（提交、写数据页前）用waitFlushed等到对应LSN落盘
+ * 4.设了flushDelay时，有异步提交的日志没落盘、又没有线程在等落盘，写日志线程最多再攒flushDelay才写，
+ *   异步提交的日志一批多攒一些；有线程等落盘或者暂存缓冲满了就立刻写，没有异步提交的日志也不攒
+ * 5.每批落盘后回调flushListener，异步提交的事务靠它把状态写进xid文件
+ *
+ * 读日志：
+ * 顺序读用LogReader，一次读一大块，日志直接在读缓冲上解析；按LSN随机读一条用read
+ *
+ * checkpoint：
+ * 最近一次checkpoint的起点LSN记在 路径.ckpt 里，[lsn][crc]；恢复用不到的旧段直接删掉
  */
 public class LoggerImpl implements Logger {
     public static final String LOG_SUFFIX = ".log";
+    public static final String CHECKPOINT_SUFFIX = ".ckpt";
 
-    private final static int LEN_LOG_SIZE = 4;
-    private static final int LEN_OF_CHECKSUM = 4;
-    private static final int SEED = 13331;
-    private static final int OF_DATA = 0 + LEN_LOG_SIZE + LEN_OF_CHECKSUM;
-    private static final int OF_CHECKSUM = 0 + LEN_LOG_SIZE;
+    static final int OF_SIZE = 0;
+    static final int OF_CRC = OF_SIZE + 4;
+    static final int OF_LSN = OF_CRC + 4;
+    static final int OF_DATA = OF_LSN + 8;
 
+    static final int FLAG_COMPRESSED = 1 << 31;
 
-    private RandomAccessFile raf;
-    private FileChannel fc;
-    private Lock lock;
+    private static final int LEN_MASTER = 8 + 4;
 
-    private int xCheckSum;
-    private long fileSize;
-    private long position;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long SEGMENT_SIZE = 64L << 20;
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xCheckSum = xCheckSum;
-        this.lock = new ReentrantLock();
+
+    private String path;
+    private Lock lock;
+    private Condition hasData;
+    private Condition notFull;
+    private Condition flushed;
+
+    // baseLsn -> 段，当前段只有写日志线程会换
+    private TreeMap<Long, LogSegment> segments;
+    private LogSegment current;
+
+    private ByteBuffer active;
+    private ByteBuffer writing;
+    private long appendLsn;
+    private long flushedLsn;
+    private Thread writer;
+    private boolean closed;
+    // 在等落盘或者等暂存缓冲腾地方的线程数
+    private int waiters;
+    private volatile long flushDelayNanos;
+    // 最后一条异步提交日志的末尾，flushedLsn追上它之前才按flushDelay攒批
+    private long asyncEnd;
+    private volatile LongConsumer flushListener;
+
+    private RandomAccessFile master;
+    private long checkpointLsn;
+
+    private volatile boolean compress;
+
+    public LoggerImpl(String path, LogSegment first) {
+        this(path);
+        segments.put(first.baseLsn, first);
+        this.current = first;
+        this.appendLsn = first.baseLsn;
+        this.flushedLsn = first.baseLsn;
+        startWriter();
     }
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.raf = raf;
-        this.fc = fc;
+    public LoggerImpl(String path) {
+        this.path = path;
         this.lock = new ReentrantLock();
+        this.hasData = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.flushed = lock.newCondition();
+        this.segments = new TreeMap<>();
+        this.active = ByteBuffer.allocate(BUFFER_SIZE);
+        this.writing = ByteBuffer.allocate(BUFFER_SIZE);
     }
 
     public void init() {
-        long length = 0L;
-        try {
-            length = raf.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+        List<File> files = LogSegment.list(path);
+        for (int i = 0; i < files.size(); i++) {
+            LogSegment seg = LogSegment.open(files.get(i), i == files.size() - 1);
+            segments.put(seg.baseLsn, seg);
         }
-        if(length < 4) {
-            Panic.panic(Error.BadLogFileException());
-        }
-        ByteBuffer buf = ByteBuffer.allocate(4);
+        current = segments.lastEntry().getValue();
+        checkpointLsn = readMaster();
+
+        checkAndRemoveTail();
+        startWriter();
+    }
+
+    private void checkAndRemoveTail() {
+        // 写日志线程还没启动，先把整个最后一段当成已落盘的，从段头读到第一条校验不过的日志为止
+        flushedLsn = current.endLsn();
+        LogReader reader = new LogReader(this, current.baseLsn);
+        while(reader.next() != null);
+        long offset = current.offsetOf(reader.position());
+        reader.close();
 
         try {
-            fc.position(0);
-            fc.read(buf);
+            current.fc.truncate(offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        current.size = offset;
+        appendLsn = current.endLsn();
+        flushedLsn = appendLsn;
+    }
 
-        this.fileSize = length;
-        this.xCheckSum = buf.getInt();
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
 
-        checkAndRemoveTail();
+    public void setFlushDelay(long millis) {
+        this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
 
+    @Override
+    public void setFlushListener(LongConsumer listener) {
+        this.flushListener = listener;
     }
 
-    private void checkAndRemoveTail() {
-        rewind();
-        int xCheck = 0;
-        while(true) {
-            byte[] next = internNext();
-            if(next == null) break;
-            xCheck += calcCheck(xCheck, next);
-        }
+    // 去掉压缩标记，得到data在文件里的长度
+    static int lengthOf(int size) {
+        return size & ~FLAG_COMPRESSED;
+    }
 
-        if(xCheck != xCheckSum) {
-            Panic.panic(Error.BadLogFileException());
-        }
+    static boolean isCompressed(int size) {
+        return (size & FLAG_COMPRESSED) != 0;
+    }
+
+    private static int crcOf(byte[] log) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, OF_SIZE, OF_CRC - OF_SIZE);
+        crc.update(log, OF_LSN, log.length - OF_LSN);
+        return (int) crc.getValue();
+    }
 
+    // 读段内offset处的一条日志
+    private LogRecord internRead(LogSegment seg, long offset, long limit) {
+        if (offset + OF_DATA > limit) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(OF_DATA);
         try {
-            fc.truncate(position);
+            seg.fc.read(header, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        int size = lengthOf(header.getInt(OF_SIZE));
+        if (offset + OF_DATA + size > limit) {
+            return null;
+        }
+
+        byte[] data = new byte[size];
         try {
-            raf.seek(position);
+            seg.fc.read(ByteBuffer.wrap(data), offset + OF_DATA);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        rewind();
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), OF_SIZE, OF_CRC - OF_SIZE);
+        crc.update(header.array(), OF_LSN, OF_DATA - OF_LSN);
+        crc.update(data);
+        long lsn = seg.lsnOf(offset);
+        if(header.getInt(OF_CRC) != (int) crc.getValue() || header.getLong(OF_LSN) != lsn) {
+            return null;
+        }
+        if(isCompressed(header.getInt(OF_SIZE))) {
+            byte[] raw = new byte[LogCodec.rawLength(data, 0)];
+            Inflater inflater = new Inflater();
+            LogCodec.decompress(inflater, data, 0, data.length, raw);
+            inflater.end();
+            data = raw;
+        }
+        return LogRecord.of(data, lsn, lsn + OF_DATA + size);
     }
 
-    private int calcCheck(int xCheck, byte[] next) {
-        for(byte b : next) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    @Override
+    public long log(byte[] data) {
+        return append(data, false);
     }
 
-    private byte[] internNext() {
-        if (position + LEN_LOG_SIZE >= fileSize) {
-            return null;
+    @Override
+    public long logAsync(byte[] data) {
+        return append(data, true);
+    }
+
+    private long append(byte[] data, boolean async) {
+        // 压缩在锁外做，各个线程并行压自己的日志
+        int flag = 0;
+        if(compress) {
+            byte[] packed = LogCodec.compress(data);
+            if(packed != null) {
+                data = packed;
+                flag = FLAG_COMPRESSED;
+            }
         }
-        ByteBuffer bufSize = ByteBuffer.allocate(LEN_LOG_SIZE);
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(Parser.int2byte(data.length | flag), 0, log, OF_SIZE, 4);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(bufSize);
-        } catch (IOException e) {
-            Panic.panic(e);
+            // 暂存缓冲放不下就等写日志线程换走，单条超过缓冲大小的日志单独开一块
+            while(active.remaining() < log.length && active.position() > 0) {
+                waiters++;
+                hasData.signal();
+                notFull.awaitUninterruptibly();
+                waiters--;
+            }
+            if(active.remaining() < log.length) {
+                active = ByteBuffer.allocate(log.length);
+            }
+            // LSN在锁里分配，保证和在流里的顺序一致
+            long lsn = appendLsn;
+            System.arraycopy(Parser.long2byte(lsn), 0, log, OF_LSN, 8);
+            System.arraycopy(Parser.int2byte(crcOf(log)), 0, log, OF_CRC, 4);
+            active.put(log);
+            appendLsn += log.length;
+            if(async) {
+                asyncEnd = appendLsn;
+            }
+            hasData.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
         }
-        int size = bufSize.getInt();
+    }
 
-        if (position + LEN_LOG_SIZE + LEN_OF_CHECKSUM + size > fileSize) {
-            return null;
+    private void startWriter() {
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        while(true) {
+            ByteBuffer batch;
+            long end;
+            lock.lock();
+            try {
+                while(active.position() == 0 && !closed) {
+                    hasData.awaitUninterruptibly();
+                }
+                if(active.position() == 0) {
+                    return;
+                }
+                long nanos = flushDelayNanos;
+                while(nanos > 0 && waiters == 0 && asyncEnd > flushedLsn && !closed) {
+                    try {
+                        nanos = hasData.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
+                batch = active;
+                active = writing.capacity() == BUFFER_SIZE ? writing : ByteBuffer.allocate(BUFFER_SIZE);
+                writing = batch;
+                end = appendLsn;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            batch.flip();
+            try {
+                long offset = current.offsetOf(flushedLsn);
+                while(batch.hasRemaining()) {
+                    offset += current.fc.write(batch, offset);
+                }
+                current.fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            batch.clear();
+            current.size = current.offsetOf(end);
+
+            // 一批日志不会跨段，写满了下一批写到新段里
+            LogSegment next = null;
+            if(current.size >= SEGMENT_SIZE) {
+                next = LogSegment.create(path, end);
+            }
+
+            lock.lock();
+            try {
+                if(next != null) {
+                    segments.put(next.baseLsn, next);
+                    current = next;
+                }
+                flushedLsn = end;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            LongConsumer listener = flushListener;
+            if(listener != null) {
+                listener.accept(end);
+            }
         }
+    }
 
-        ByteBuffer bufSizeCheckData = ByteBuffer.allocate(LEN_LOG_SIZE + LEN_OF_CHECKSUM + size);
+    @Override
+    public void waitFlushed(long lsn) {
+        waitFlushedTo(lsn + 1);
+    }
+
+    private void waitFlushedTo(long end) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(bufSizeCheckData);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while(flushedLsn < end) {
+                waiters++;
+                hasData.signal();
+                flushed.awaitUninterruptibly();
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        byte[] logArray = bufSizeCheckData.array();
-        int checkSum1 = calcCheck(0, Arrays.copyOfRange(logArray, OF_DATA, logArray.length));
-        int checkSum2 = ByteBuffer.wrap(Arrays.copyOfRange(logArray, OF_CHECKSUM, OF_DATA)).getInt();
-        if(checkSum1 != checkSum2) {
-            Panic.panic(Error.BadLogFileException());
+    @Override
+    public long currentLsn() {
+        lock.lock();
+        try {
+            return appendLsn;
+        } finally {
+            lock.unlock();
         }
-
-        position += logArray.length;
-        return logArray;
     }
 
     @Override
-    public void log(byte[] data) {
-        byte[] size = Parser.int2byte(data.length);
-        byte[] checkSum = Parser.int2byte(calcCheck(0, data));
-        byte[] logBytes = Bytes.concat(size, checkSum, data);
+    public long flushedLsn() {
+        lock.lock();
+        try {
+            return flushedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    @Override
+    public void truncate(long lsn) {
         lock.lock();
         try {
-            fc.position(position);
-            fc.write(ByteBuffer.wrap(logBytes));
+            current.fc.truncate(current.offsetOf(lsn));
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
+    }
 
-        updateXCheckSum(logBytes);
+    @Override
+    public LogReader reader(long lsn) {
+        return new LogReader(this, lsn);
     }
 
-    private void updateXCheckSum(byte[] logBytes) {
-        this.xCheckSum = calcCheck(this.xCheckSum, logBytes);
+    // 只读已经落盘的部分
+    @Override
+    public LogRecord read(long lsn) {
+        LogSegment seg;
+        long limit;
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2byte(this.xCheckSum)));
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(lsn);
+            if(entry == null) {
+                return null;
+            }
+            seg = entry.getValue();
+            limit = readLimit(seg);
+        } finally {
+            lock.unlock();
         }
+        return internRead(seg, seg.offsetOf(lsn), limit);
     }
 
-    @Override
-    public void truncate(long position) {
+    // 包含lsn的那一段，lsn比最早的段还早就从最早的段开始
+    LogSegment segmentOf(long lsn) {
         lock.lock();
         try {
-            fc.truncate(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(lsn);
+            return entry == null ? segments.firstEntry().getValue() : entry.getValue();
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public byte[] next() {
+    // 从baseLsn开始的那一段，没有就返回null
+    LogSegment segmentAt(long baseLsn) {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return segments.get(baseLsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 段里已经落盘的部分的末尾，段内偏移
+    long readLimit(LogSegment seg) {
+        lock.lock();
+        try {
+            return seg == current ? seg.offsetOf(flushedLsn) : seg.size;
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {
-        this.position = 4;
+    public void flush() {
+        waitFlushedTo(currentLsn());
     }
 
     @Override
-    public void close() {
+    public long getCheckpoint() {
+        return checkpointLsn;
+    }
+
+    @Override
+    public void checkpoint(long lsn, long truncateLsn) {
+        writeMaster(lsn);
+        checkpointLsn = lsn;
+
+        // 整段都在truncateLsn之前的才删，当前段不删
+        List<LogSegment> obsolete = new ArrayList<>();
+        lock.lock();
+        try {
+            LogSegment prev = null;
+            for (LogSegment seg : segments.values()) {
+                if(prev != null && seg.baseLsn <= truncateLsn) {
+                    obsolete.add(prev);
+                }
+                prev = seg;
+            }
+            for (LogSegment seg : obsolete) {
+                segments.remove(seg.baseLsn);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (LogSegment seg : obsolete) {
+            seg.delete();
+        }
+    }
+
+    private FileChannel masterChannel() throws IOException {
+        if(master == null) {
+            master = new RandomAccessFile(path + CHECKPOINT_SUFFIX, "rw");
+        }
+        return master.getChannel();
+    }
+
+    private void writeMaster(long lsn) {
+        byte[] lsnBytes = Parser.long2byte(lsn);
+        CRC32C crc = new CRC32C();
+        crc.update(lsnBytes);
+        try {
+            FileChannel fc = masterChannel();
+            fc.write(ByteBuffer.wrap(Bytes.concat(lsnBytes, Parser.int2byte((int) crc.getValue()))), 0);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 没有checkpoint或者记录坏了就返回0，从最早的段开始恢复
+    private long readMaster() {
+        if(!new File(path + CHECKPOINT_SUFFIX).exists()) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(LEN_MASTER);
         try {
-            fc.close();
-            raf.close();
+            masterChannel().read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        byte[] raw = buf.array();
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, 8);
+        if(Parser.byte2int(Arrays.copyOfRange(raw, 8, LEN_MASTER)) != (int) crc.getValue()) {
+            return 0;
+        }
+        return Parser.byte2long(Arrays.copyOfRange(raw, 0, 8));
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if(writer != null) {
+                writer.join();
+            }
+            if(master != null) {
+                master.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            Panic.panic(e);
+        }
+        for (LogSegment seg : segments.values()) {
+            seg.close();
+        }
     }
 }
@@ -7,5 +7,12 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
+    // 最后一次改动这页的日志的LSN，写回之前要等它落盘，-1表示读进来之后没有带日志的改动
+    long getLsn();
+    void setLsn(long lsn);
+    // 正在改这页、还没写日志的DataItem个数，有的话写回要跳过这页；三个方法都要在页锁里调
+    void addWriter();
+    void removeWriter();
+    boolean hasWriters();
     byte[] getData();
 }
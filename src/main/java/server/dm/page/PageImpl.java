@@ -14,7 +14,9 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageImpl implements Page{
 
     private int pageNumber;
-    private boolean dirty;
+    private volatile boolean dirty;
+    private volatile long lsn = -1;
+    private int writers;
     private byte[] date;
     private Lock lock;
 
@@ -44,7 +46,11 @@ public class PageImpl implements Page{
 
     @Override
     public void setDirty(boolean dirty) {
+        boolean wasDirty = this.dirty;
         this.dirty = dirty;
+        if(dirty && !wasDirty && pc != null) {
+            pc.markDirty(this);
+        }
     }
 
     @Override
@@ -52,6 +58,31 @@ public class PageImpl implements Page{
         return dirty;
     }
 
+    @Override
+    public long getLsn() {
+        return lsn;
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    @Override
+    public void addWriter() {
+        writers++;
+    }
+
+    @Override
+    public void removeWriter() {
+        writers--;
+    }
+
+    @Override
+    public boolean hasWriters() {
+        return writers > 0;
+    }
+
     @Override
     public int getPageNumber() {
         return pageNumber;
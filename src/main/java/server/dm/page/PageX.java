@@ -8,13 +8,16 @@ import java.util.Arrays;
 /**
  *  常规页管理类
  *  管理除了PageOne之外的常规页
+ *  页结构：[FreeSpaceOffset][PageLsn][Data]
+ *  PageLsn是最后一次改动这页的日志的LSN，恢复时LSN比它小的日志不用再重做
  */
 public class PageX {
 
     public static final short OF_FREE = 0;
-    public static final short OF_DATE = 2;
+    public static final short OF_PAGE_LSN = 2;
+    public static final short OF_DATE = OF_PAGE_LSN + 8;
 
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - 2;
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATE;
 
     public static byte[] initRaw() {
         byte[] page = new byte[PageCache.PAGE_SIZE];
@@ -23,7 +26,20 @@ public class PageX {
     }
 
     public static void setFSO(byte[] page, short fso) {
-        System.arraycopy(Parser.short2byte(fso), 0, page, OF_FREE, OF_DATE - OF_FREE);
+        System.arraycopy(Parser.short2byte(fso), 0, page, OF_FREE, OF_PAGE_LSN - OF_FREE);
+    }
+
+    /**
+     * 崩溃前新建、还没落盘的页（mmap模式下还有预分配的块）读出来全是0，FSO也是0，
+     * 不重新初始化的话空闲空间会算成整页，插入还会盖掉页头，调用方要持有页锁
+     */
+    public static boolean reinitIfZero(Page page) {
+        if(getFSO(page) != 0) {
+            return false;
+        }
+        setFSO(page.getData(), OF_DATE);
+        page.setDirty(true);
+        return true;
     }
 
     public static short getFSO(Page page) {
@@ -31,7 +47,21 @@ public class PageX {
     }
 
     public static short getFSO(byte[] page) {
-        return Parser.byte2short(Arrays.copyOfRange(page, OF_FREE, OF_DATE));
+        return Parser.byte2short(Arrays.copyOfRange(page, OF_FREE, OF_PAGE_LSN));
+    }
+
+    public static long getPageLsn(Page page) {
+        return Parser.byte2long(Arrays.copyOfRange(page.getData(), OF_PAGE_LSN, OF_DATE));
+    }
+
+    /**
+     * 页LSN只增不减，调用方要持有页锁
+     */
+    public static void setPageLsn(Page page, long lsn) {
+        if(lsn > getPageLsn(page)) {
+            System.arraycopy(Parser.long2byte(lsn), 0, page.getData(), OF_PAGE_LSN, OF_DATE - OF_PAGE_LSN);
+        }
+        page.setLsn(Math.max(page.getLsn(), lsn));
     }
 
     public static int getFreeSpace(Page pg) {
@@ -41,17 +71,21 @@ public class PageX {
     public static short insert(Page page, byte[] raw) {
         page.setDirty(true);
         short offset = getFSO(page);
-        System.arraycopy(raw, 0, page, offset, raw.length);
+        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
         setFSO(page.getData(), (short) (offset + raw.length));
         return offset;
     }
 
     public static void recoverInsert(Page page, byte[] raw, short offset) {
-        page.setDirty(true);
         System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        recoverInsert(page, offset, raw.length);
+    }
 
-        if(offset + raw.length > getFSO(page)) {
-            setFSO(page.getData(), (short)(offset + raw.length));
+    // raw已经拷到页里offset处了，只补上脏标记和FSO
+    public static void recoverInsert(Page page, short offset, int length) {
+        page.setDirty(true);
+        if(offset + length > getFSO(page)) {
+            setFSO(page.getData(), (short)(offset + length));
         }
     }
 
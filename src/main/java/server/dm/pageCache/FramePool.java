@@ -0,0 +1,57 @@
+package server.dm.pageCache;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页帧池，启动时按页缓存容量预分配固定数量的页帧，页被淘汰后页帧归还复用
+ * 页缓存的换入换出不再产生新的8K数组；全部页都被pin住超出容量时临时分配，归还时池满就丢弃
+ */
+public class FramePool {
+    private byte[][] frames;
+    private int free;
+    private Lock lock;
+
+    public FramePool(int capacity) {
+        this.frames = new byte[Math.max(capacity, 0)][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new byte[PageCache.PAGE_SIZE];
+        }
+        this.free = frames.length;
+        this.lock = new ReentrantLock();
+    }
+
+    public byte[] acquire() {
+        lock.lock();
+        try {
+            if(free > 0) {
+                byte[] frame = frames[--free];
+                frames[free] = null;
+                return frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new byte[PageCache.PAGE_SIZE];
+    }
+
+    public void recycle(byte[] frame) {
+        lock.lock();
+        try {
+            if(free < frames.length) {
+                frames[free++] = frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int available() {
+        lock.lock();
+        try {
+            return free;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server.dm.pageCache;
+
+import server.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存映射模式的页缓存，.db文件按CHUNK_SIZE分块映射
+ * 缺页时直接从映射区拷贝，不走read系统调用；newPage超出已映射范围时文件按块扩展并映射新块
+ *
+ * 文件长度按块预分配，正常关闭时截断回真实页数；
+ * 崩溃后文件尾部可能多出全0页，打开时由DataManager.fillPageIndex重新初始化成空页
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+    private static final long CHUNK_SIZE = (long) PAGE_SIZE * 8192;
+
+    private volatile MappedByteBuffer[] chunks;
+    private Lock growLock;
+
+    public MappedPageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource) {
+        super(raf, fc, maxResource);
+        this.chunks = new MappedByteBuffer[0];
+        this.growLock = new ReentrantLock();
+        try {
+            long length = raf.length();
+            if(length > 0) {
+                ensureMapped(length);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] data) throws IOException {
+        long offset = pageOffset(pgno);
+        ensureMapped(offset + PAGE_SIZE);
+        chunkSlice(offset).get(data);
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data) throws IOException {
+        long offset = pageOffset(pgno);
+        ensureMapped(offset + PAGE_SIZE);
+        chunkSlice(offset).put(data);
+    }
+
+    @Override
+    protected void sync() throws IOException {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    // 每次取一个duplicate，各线程的position互不影响
+    private ByteBuffer chunkSlice(long offset) {
+        ByteBuffer buf = chunks[(int) (offset / CHUNK_SIZE)].duplicate();
+        buf.position((int) (offset % CHUNK_SIZE));
+        return buf;
+    }
+
+    private void ensureMapped(long end) throws IOException {
+        if(end <= (long) chunks.length * CHUNK_SIZE) {
+            return;
+        }
+        growLock.lock();
+        try {
+            int need = (int) ((end + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] old = chunks;
+            if(need <= old.length) {
+                return;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(old, need);
+            for (int i = old.length; i < need; i++) {
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_SIZE, CHUNK_SIZE);
+            }
+            chunks = grown;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    @Override
+    public void truncateyByPgno(int maxPgno) {
+        // 映射还在，物理截断会让后面的访问SIGBUS，这里只做逻辑截断，关闭时再真正截断
+        pageNumbers.set(maxPgno);
+    }
+
+    @Override
+    protected void closeFile() throws IOException {
+        sync();
+        raf.setLength(pageOffset(pageNumbers.get() + 1));
+        super.closeFile();
+    }
+}
@@ -9,6 +9,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
 public interface PageCache {
     final static int PAGE_SIZE = 1 << 13;
@@ -22,6 +23,11 @@ public interface PageCache {
     void truncateyByPgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page page);
+    void markDirty(Page page);
+    // 页号 -> 变脏时的LSN
+    Map<Integer, Long> dirtyPageTable();
+    void checkpoint();
+    void prefetch(int pgno);
 
     public static PageCacheImpl create(String path, long memory) {
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
@@ -46,7 +52,7 @@ public interface PageCache {
         return new PageCacheImpl(raf, fc, (int) (memory/PAGE_SIZE));
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    public static PageCacheImpl open(String path, long memory, boolean mmap) {
         File file = new File(path + PageCacheImpl.DB_SUFFIX);
         if(!file.exists()) {
             Panic.panic(Error.FileNotExistsException());
@@ -59,6 +65,9 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
+        if(mmap) {
+            return new MappedPageCacheImpl(raf, fc, (int) (memory/PAGE_SIZE));
+        }
         return new PageCacheImpl(raf, fc, (int) (memory/PAGE_SIZE));
     }
 }
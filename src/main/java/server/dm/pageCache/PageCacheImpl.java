@@ -1,6 +1,8 @@
 package server.dm.pageCache;
 
 import server.common.AbstractCache;
+import server.common.TinyLfuPolicy;
+import server.dm.logger.Logger;
 import server.dm.page.Page;
 import server.dm.page.PageImpl;
 import server.utils.Panic;
@@ -9,27 +11,87 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 页缓存类，负责页、页缓存的管理
+ * 读写页都用FileChannel的定位读写(pread/pwrite)，不改文件position，不同页的IO可以并发进行
+ *
+ * 脏页不再每写一页就fsync一次：
+ * 1.页变脏时登记到dirtyPages，同时记下变脏时的日志LSN（recLsn），checkpoint日志里的脏页表就是它
+ * 2.checkpoint时把脏页按页号顺序写出，整批只fsync一次，由DataManager定时触发
+ * 3.写数据页之前先保证日志已经落盘（WAL）
+ * 4.写出去还没fsync的页（包括淘汰时写回的）记在unsynced里，fsync之前仍然算在脏页表里，
+ *   否则checkpoint按脏页表删掉日志后断电，这页唯一的一份还在操作系统缓存里
+ *
+ * 页数据放在FramePool的页帧里，淘汰时页帧归还复用；
+ * checkpoint拿到的脏页没有pin住，可能在写出去之前就被淘汰、页帧给了别的页，
+ * 所以写之前要在页锁里确认这个Page还登记在dirtyPages里，淘汰写回也要拿页锁，两边不会同时碰一个页帧
+ * 淘汰用W-TinyLFU，全表扫描不会把热点页挤出去
+ *
+ * 预读：同一个线程连续访问页号递增的页达到阈值后，后台异步读入后面READ_AHEAD_PAGES页，重复读同一页不算打断；
+ * 恢复时redo也通过prefetch直接提示接下来要读的页，B+树的叶子不在连续的页上，范围扫描由BPlusTree自己往前预读叶子
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile raf;
-    private FileChannel fc;
-    private Lock lock;
+    private static final int SEQUENTIAL_THRESHOLD = 3;
+    private static final int READ_AHEAD_PAGES = 8;
+    private static final int READ_AHEAD_THREADS = 2;
+    private static final int READ_AHEAD_QUEUE = 64;
 
-    private AtomicInteger pageNumbers;
+    protected RandomAccessFile raf;
+    protected FileChannel fc;
+
+    protected AtomicInteger pageNumbers;
+
+    private FramePool frames;
+    private ThreadLocal<byte[]> writeBuf;
+
+    private Logger lg;
+    private Map<Integer, Page> dirtyPages;
+    private Map<Integer, Long> recLsns;
+    // 页号 -> 写出去、还没fsync的内容的recLsn，每次合并都换一个新数组，fsync后按数组身份删
+    private Map<Integer, long[]> unsynced;
+    // 写页拿读锁，fsync前拍unsynced的快照拿写锁，快照里的页一定都已经写完了
+    private ReadWriteLock syncLock;
+    private Lock flushLock;
+
+    // 顺序访问检测，每个线程各自算，别的会话的访问不会打断自己的顺序扫描
+    // [上一次访问的页号, 连续递增的次数, 下一批预读的起点]
+    private ThreadLocal<int[]> sequential;
+    private ThreadPoolExecutor readAhead;
+
+    private PageCacheStats stats;
 
     public PageCacheImpl(RandomAccessFile raf, FileChannel fc, int maxResource) {
-        super(maxResource);
+        super(maxResource, TinyLfuPolicy::new);
         this.raf = raf;
         this.fc = fc;
-        this.lock = new ReentrantLock();
+        this.frames = new FramePool(maxResource);
+        this.writeBuf = ThreadLocal.withInitial(() -> new byte[PAGE_SIZE]);
+        this.sequential = ThreadLocal.withInitial(() -> new int[3]);
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.recLsns = new ConcurrentHashMap<>();
+        this.unsynced = new ConcurrentHashMap<>();
+        this.syncLock = new ReentrantReadWriteLock();
+        this.stats = new PageCacheStats(this);
+        this.flushLock = new ReentrantLock();
         long length = 0;
         try {
             length = raf.length();
@@ -38,66 +100,269 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         }
 
         this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        // 预读队列满了就直接丢掉，预读只是优化
+        this.readAhead = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * 设置WAL依赖的日志，写数据页前先把日志刷盘
+     */
+    public void setLogger(Logger lg) {
+        this.lg = lg;
     }
 
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long pageOffset = pageOffset(pgno);
-        lock.lock();
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        byte[] data = frames.acquire();
         try {
-            fc.position(pageOffset);
-            fc.read(buf);
+            long start = System.nanoTime();
+            readPage(pgno, data);
+            stats.readLatency.record(System.nanoTime() - start);
+            stats.readBytes.add(PAGE_SIZE);
         } catch (IOException e) {
+            frames.recycle(data);
             Panic.panic(e);
-        } finally {
-            lock.unlock();
         }
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, data, this);
     }
 
+    // 被淘汰的页没有被pin住，脏的话写回时拿页锁，正在写它的checkpoint写完了才会归还页帧；
+    // 不脏的页不在dirtyPages里，checkpoint会跳过它
+    // 只等这页自己的LSN落盘（write里的waitFlushed），不用把整个日志缓冲都刷掉
     @Override
     protected void releaseForCache(Page page) {
         if(page.isDirty()) {
-            flush(page);
-            page.setDirty(false);
+            write(page, false);
         }
+        frames.recycle(page.getData());
     }
 
     @Override
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
         PageImpl page = new PageImpl(pgno, initData, null);
-        flush(page);
+        write(page, false);
         return pgno;
     }
 
+    // 先取LSN再登记，checkpoint先取LSN再拷脏页表，漏掉的页变脏时的LSN一定不早于checkpoint的起点
+    @Override
+    public void markDirty(Page page) {
+        recLsns.put(page.getPageNumber(), lg == null ? 0 : lg.currentLsn());
+        dirtyPages.put(page.getPageNumber(), page);
+    }
+
+    // 先看dirtyPages再看unsynced：写页时先记进unsynced再从dirtyPages里去掉，两边都漏看不到
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        Map<Integer, Long> table = new TreeMap<>();
+        for (Integer pgno : dirtyPages.keySet()) {
+            Long recLsn = recLsns.get(pgno);
+            if(recLsn != null) {
+                table.put(pgno, recLsn);
+            }
+        }
+        for (Map.Entry<Integer, long[]> e : unsynced.entrySet()) {
+            table.merge(e.getKey(), e.getValue()[0], Math::min);
+        }
+        return table;
+    }
+
+    /**
+     * 把当前所有脏页按页号顺序写出，连同之前淘汰时写回的页整批fsync一次
+     */
+    @Override
+    public void checkpoint() {
+        flushLock.lock();
+        try {
+            List<Page> batch = new ArrayList<>(dirtyPages.values());
+            if(batch.isEmpty() && unsynced.isEmpty()) {
+                return;
+            }
+            if(!batch.isEmpty()) {
+                syncLog();
+                for (Page page : batch) {
+                    write(page, true);
+                }
+            }
+            syncWrites();
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
     public void flush(Page page) {
-        int pgno = page.getPageNumber();
-        long offset = pageOffset(pgno);
+        write(page, false);
+        try {
+            syncWrites();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
 
-        lock.lock();
+    // 在页锁里清脏标记、拷贝到本线程的写缓冲，之后又被改了的页会重新登记，下一批再写
+    // WAL：拷贝下来的内容里最后一次改动的日志落盘之后才能写页
+    // registeredOnly：checkpoint用，这个Page已经不在dirtyPages里（被淘汰写回过）就不写，它的页帧可能已经是别的页了
+    private void write(Page page, boolean registeredOnly) {
+        int pgno = page.getPageNumber();
+        byte[] data = writeBuf.get();
+        long lsn;
+        syncLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.write(ByteBuffer.wrap(page.getData()));
-            fc.force(false);
+            page.lock();
+            try {
+                if(registeredOnly && dirtyPages.get(pgno) != page) {
+                    return;
+                }
+                // 有DataItem改了一半还没写日志，这时写出去崩溃后既没法redo也没法undo，留着下一批再写；
+                // 淘汰和flush的页不会有写者，写者一定pin着页
+                if(registeredOnly && page.hasWriters()) {
+                    return;
+                }
+                if(dirtyPages.get(pgno) == page) {
+                    // recLsn挪到unsynced里，fsync之前脏页表里还有这页
+                    Long recLsn = recLsns.get(pgno);
+                    if(recLsn != null) {
+                        unsynced.merge(pgno, new long[]{recLsn}, (a, b) -> new long[]{Math.min(a[0], b[0])});
+                    }
+                    dirtyPages.remove(pgno, page);
+                    recLsns.remove(pgno);
+                }
+                page.setDirty(false);
+                System.arraycopy(page.getData(), 0, data, 0, PAGE_SIZE);
+                lsn = page.getLsn();
+            } finally {
+                page.unlock();
+            }
+            if(lg != null && lsn >= 0) {
+                lg.waitFlushed(lsn);
+            }
+
+            long start = System.nanoTime();
+            writePage(pgno, data);
+            stats.writeLatency.record(System.nanoTime() - start);
+            stats.writeBytes.add(PAGE_SIZE);
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
-            lock.unlock();
+            syncLock.readLock().unlock();
+        }
+    }
+
+    // fsync之前已经写完的页才能从unsynced里去掉，fsync期间又写了的页换过数组，删不掉，留给下一次
+    private void syncWrites() throws IOException {
+        Map<Integer, long[]> written;
+        syncLock.writeLock().lock();
+        try {
+            written = new HashMap<>(unsynced);
+        } finally {
+            syncLock.writeLock().unlock();
+        }
+        timedSync();
+        for (Map.Entry<Integer, long[]> e : written.entrySet()) {
+            unsynced.remove(e.getKey(), e.getValue());
         }
     }
 
-    private long pageOffset(int pgno) {
+    private void timedSync() throws IOException {
+        long start = System.nanoTime();
+        sync();
+        stats.syncLatency.record(System.nanoTime() - start);
+    }
+
+    public PageCacheStats getStats() {
+        return stats;
+    }
+
+    public int getDirtyPageCount() {
+        return dirtyPages.size();
+    }
+
+    private void syncLog() {
+        if(lg != null) {
+            lg.flush();
+        }
+    }
+
+    // 页帧是复用的，文件尾之后没读到的部分要清0
+    protected void readPage(int pgno, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        readFully(buf, pageOffset(pgno));
+        Arrays.fill(data, buf.position(), data.length, (byte) 0);
+    }
+
+    protected void writePage(int pgno, byte[] data) throws IOException {
+        writeFully(ByteBuffer.wrap(data), pageOffset(pgno));
+    }
+
+    protected void sync() throws IOException {
+        fc.force(false);
+    }
+
+    // 定位读一次不一定读满，读到文件尾就停，剩下的保持为0
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        while(buf.hasRemaining()) {
+            int n = fc.read(buf, offset + buf.position());
+            if(n < 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        while(buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+
+    protected long pageOffset(int pgno) {
         return (long) (pgno - 1) * PAGE_SIZE;
     }
 
     @Override
     public Page getPage(int pgno) {
+        detectSequential(pgno);
         return super.get(pgno);
     }
 
+    private void detectSequential(int pgno) {
+        int[] seq = sequential.get();
+        // 同一页上的几个DataItem接着读，不算打断顺序
+        if(pgno == seq[0]) {
+            return;
+        }
+        int run = pgno == seq[0] + 1 ? seq[1] + 1 : 0;
+        seq[0] = pgno;
+        seq[1] = run;
+        if(run == 0) {
+            seq[2] = 0;
+            return;
+        }
+        // 读到上一批预读的中间位置时再发起下一批，保证预读始终领先于扫描
+        if(run >= SEQUENTIAL_THRESHOLD && pgno >= seq[2]) {
+            seq[2] = pgno + READ_AHEAD_PAGES / 2;
+            for (int i = 1; i <= READ_AHEAD_PAGES; i++) {
+                prefetch(pgno + i);
+            }
+        }
+    }
+
+    @Override
+    public void prefetch(int pgno) {
+        if(pgno <= 0 || pgno > pageNumbers.get() || readAhead.isShutdown()) {
+            return;
+        }
+        readAhead.execute(() -> super.preload(pgno));
+    }
+
     @Override
     public void release(Page page) {
         super.release(page.getPageNumber());
@@ -105,14 +370,28 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     @Override
     public void close() {
+        // 不能用shutdownNow，中断正在读盘的线程会把FileChannel关掉
+        readAhead.shutdown();
         try {
-            raf.close();
-            fc.close();
+            readAhead.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        super.close();
+        checkpoint();
+        try {
+            closeFile();
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
+    protected void closeFile() throws IOException {
+        sync();
+        raf.close();
+        fc.close();
+    }
+
     @Override
     public void truncateyByPgno(int maxPgno) {
         long maxSize = pageOffset(maxPgno + 1);
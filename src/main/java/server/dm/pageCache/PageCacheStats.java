@@ -0,0 +1,81 @@
+package server.dm.pageCache;
+
+import server.common.CacheStats;
+import server.common.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class PageCacheStats extends CacheStats implements PageCacheStatsMXBean {
+    private PageCacheImpl pc;
+
+    LongAdder readBytes = new LongAdder();
+    LongAdder writeBytes = new LongAdder();
+    LatencyHistogram readLatency = new LatencyHistogram();
+    LatencyHistogram writeLatency = new LatencyHistogram();
+    LatencyHistogram syncLatency = new LatencyHistogram();
+
+    public PageCacheStats(PageCacheImpl pc) {
+        super(pc);
+        this.pc = pc;
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return pc.getDirtyPageCount();
+    }
+
+    @Override
+    public long getReadCount() {
+        return readLatency.getCount();
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes.sum();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeLatency.getCount();
+    }
+
+    @Override
+    public long getWriteBytes() {
+        return writeBytes.sum();
+    }
+
+    @Override
+    public long getSyncCount() {
+        return syncLatency.getCount();
+    }
+
+    @Override
+    public long[] getReadLatencyHistogram() {
+        return readLatency.snapshot();
+    }
+
+    @Override
+    public long[] getWriteLatencyHistogram() {
+        return writeLatency.snapshot();
+    }
+
+    @Override
+    public long[] getSyncLatencyHistogram() {
+        return syncLatency.snapshot();
+    }
+
+    @Override
+    public double getReadLatencyMeanMicros() {
+        return readLatency.getMeanMicros();
+    }
+
+    @Override
+    public long getReadLatencyP99Micros() {
+        return readLatency.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getSyncLatencyP99Micros() {
+        return syncLatency.percentileMicros(0.99);
+    }
+}
@@ -0,0 +1,24 @@
+package server.dm.pageCache;
+
+import server.common.CacheStatsMXBean;
+
+/**
+ * 页缓存在通用缓存统计之外还导出脏页数和磁盘IO统计
+ * 延迟直方图第i个桶表示 [2^(i-1), 2^i) 微秒
+ */
+public interface PageCacheStatsMXBean extends CacheStatsMXBean {
+    int getDirtyPages();
+
+    long getReadCount();
+    long getReadBytes();
+    long getWriteCount();
+    long getWriteBytes();
+    long getSyncCount();
+
+    long[] getReadLatencyHistogram();
+    long[] getWriteLatencyHistogram();
+    long[] getSyncLatencyHistogram();
+    double getReadLatencyMeanMicros();
+    long getReadLatencyP99Micros();
+    long getSyncLatencyP99Micros();
+}
@@ -18,8 +18,8 @@ public class PageIndex {
     public PageIndex() {
         lock = new ReentrantLock();
         lists = new List[INTERVALS_NO + 1];
-        for(List list : lists) {
-            list = new ArrayList();
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new ArrayList<>();
         }
     }
 
@@ -18,6 +18,8 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class BPlusTree {
+    private static final int PREFETCH_LEAVES = 8;
+
     public DataManager dm;
     private long bootUid;
     private DataItem bootDataItem;
@@ -96,6 +98,7 @@ public class BPlusTree {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
+        int walked = 0;
         while (true) {
             Node leaf = Node.loadNode(this, leafUid);
             LeafSearchRangeRes res = leaf.leafSearchRangeRes(leftKey, rightKey);
@@ -104,12 +107,27 @@ public class BPlusTree {
             if(res.siblingUid == 0) {
                 break;
             } else {
+                // 叶子不在连续的页上，页缓存的顺序预读帮不上，每走一半就让后台再往前读PREFETCH_LEAVES个叶子
+                if(walked++ % (PREFETCH_LEAVES / 2) == 0) {
+                    long from = res.siblingUid;
+                    dm.readAhead(() -> prefetchLeaves(from, leftKey, rightKey));
+                }
                 leafUid = res.siblingUid;
             }
         }
         return uids;
     }
 
+    // 下一个叶子要读了当前这个才知道，只能在后台顺着叶子链一个个读进缓存，出了范围就停
+    private void prefetchLeaves(long leafUid, long leftKey, long rightKey) {
+        for (int i = 0; i < PREFETCH_LEAVES && leafUid != 0; i++) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafSearchRangeRes res = leaf.leafSearchRangeRes(leftKey, rightKey);
+            leaf.release();
+            leafUid = res.siblingUid;
+        }
+    }
+
     class InsertRes{
         long newNode;
         long newKey;
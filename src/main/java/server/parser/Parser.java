@@ -389,8 +389,12 @@ public class Parser {
     }
 
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
-        String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        if("async".equals(tokenizer.peek())) {
+            begin.isAsync = true;
+            tokenizer.pop();
+        }
+        String isolation = tokenizer.peek();
         if("".equals(isolation)) {
             return begin;
         }
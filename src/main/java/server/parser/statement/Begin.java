@@ -2,4 +2,5 @@ package server.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isAsync;
 }
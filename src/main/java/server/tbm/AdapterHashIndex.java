@@ -4,47 +4,55 @@ import server.common.AbstractCache;
 
 import java.util.List;
 
-public class AdapterHashIndex extends AbstractCache<List<Long>> {
-    public AdapterHashIndex() {
-        super(1000);
+/**
+ * 所有表共用一个自适应哈希索引，容量来自内存预算
+ * 缓存key是(表uid, 查询key)的哈希，槽里存着原始的表uid和key，取的时候校验，哈希冲突就当没命中
+ */
+public class AdapterHashIndex extends AbstractCache<AdapterHashIndex.HashEntry> {
+
+    static class HashEntry {
+        long tableUid;
+        long key;
+        List<Long> uids;
+
+        HashEntry(long tableUid, long key, List<Long> uids) {
+            this.tableUid = tableUid;
+            this.key = key;
+            this.uids = uids;
+        }
+    }
+
+    public AdapterHashIndex(int maxResource) {
+        super(maxResource);
     }
 
     @Override
-    protected List<Long> getForCache(long key) throws Exception {
+    protected HashEntry getForCache(long key) throws Exception {
         return null;
     }
 
     @Override
-    protected void releaseForCache(List<Long> obj) {
+    protected void releaseForCache(HashEntry obj) {
 
     }
 
-    public synchronized List<Long> getHashCache(long key) {
-        Node node;
-        if (newCache.containsKey(key)) {
-            node = newCache.get(key);
-            moveToHead(node, false);
-        } else {
-            node = oldCache.get(key);
-            moveToHead(node, true);
-        }
-
-        return node.getContent();
+    private static long slot(long tableUid, long key) {
+        return tableUid * 0x9E3779B97F4A7C15L + key;
     }
 
-    public synchronized void addHashCache(long key, List<Long> uids) {
-        AbstractCache<List<Long>>.Node node = new Node(key, uids);
-        addToHead(node, false);
-        newCache.put(key, node);
-        newCount++;
-        while (newCount >= newResource) {
-            newCache.remove(newTail.prev);
-            removeTail(false);
-            newCount--;
+    public List<Long> getHashCache(long tableUid, long key) {
+        HashEntry entry = getIfPresent(slot(tableUid, key));
+        if (entry == null || entry.tableUid != tableUid || entry.key != key) {
+            return null;
         }
+        return entry.uids;
+    }
+
+    public void addHashCache(long tableUid, long key, List<Long> uids) {
+        put(slot(tableUid, key), new HashEntry(tableUid, key, uids));
     }
 
-    public boolean containsCacheKey(long key) {
-        return newCache.containsKey(key) || oldCache.containsKey(key);
+    public boolean containsCacheKey(long tableUid, long key) {
+        return getHashCache(tableUid, key) != null;
     }
 }
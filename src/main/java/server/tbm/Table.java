@@ -21,8 +21,6 @@ public class Table {
     long nextUid;
     List<Field> fields = new ArrayList<>();
 
-    AdapterHashIndex adapterHashIndex = new AdapterHashIndex();
-
     public Table(TableManager tbm, long uid) {
         this.tbm = tbm;
         this.uid = uid;
@@ -203,11 +201,13 @@ public class Table {
         List<Long> uids;
         // todo 错误了？？
         if (where.singleExp1.equals("=")) {
-            if (adapterHashIndex.containsCacheKey(l0)) {
-                return adapterHashIndex.getHashCache(l0);
+            AdapterHashIndex adapterHashIndex = ((TableManagerImpl) tbm).hashIndex;
+            List<Long> cached = adapterHashIndex.getHashCache(uid, l0);
+            if (cached != null) {
+                return cached;
             } else {
                 uids = fd.search(l0, r0);
-                adapterHashIndex.addHashCache(l0, uids);
+                adapterHashIndex.addHashCache(uid, l0, uids);
             }
         } else {
             uids = fd.search(l0, r0);
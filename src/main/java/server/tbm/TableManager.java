@@ -19,14 +19,14 @@ public interface TableManager {
     byte[] delete(long xid, Delete delete) throws Exception;
 
 
-    public static TableManager create(String path, VersionManager vm, DataManager dm) {
+    public static TableManager create(String path, VersionManager vm, DataManager dm, int hashIndexSize) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2byte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, hashIndexSize);
     }
 
-    public static TableManager open(String path, VersionManager vm, DataManager dm) {
+    public static TableManager open(String path, VersionManager vm, DataManager dm, int hashIndexSize) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, hashIndexSize);
     }
 }
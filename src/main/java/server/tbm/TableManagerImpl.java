@@ -17,14 +17,16 @@ public class TableManagerImpl implements TableManager {
     VersionManager vm;
     DataManager dm;
     private Booter booter;
+    AdapterHashIndex hashIndex;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
 
-    public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
+    public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter, int hashIndexSize) {
         this.vm = vm;
         this.dm = dm;
         this.booter = booter;
+        this.hashIndex = new AdapterHashIndex(hashIndexSize);
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
@@ -49,7 +51,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead ? 1 : 0;
-        res.xid = vm.begin(level);
+        res.xid = vm.begin(level, begin.isAsync);
         res.result = "begin".getBytes();
         return res;
     }
@@ -13,10 +13,16 @@ import java.nio.channels.FileChannel;
 public interface TransactionManager {
     public long begin();
     public void commit(long xid);
+    // 异步提交用：只改内存里的状态，等提交日志落盘之后再调commit写xid文件
+    public void commitInMemory(long xid);
     public void abort(long xid);
     public boolean isActive(long xid);
     public boolean isCommitted(long xid);
     public boolean isAborted(long xid);
+    // 恢复时用：把崩溃前没结束的事务，以及预留了还没用上的xid，都标成aborted
+    public void abortUnfinished();
+    // 把懒写的事务状态落盘
+    public void flush();
     public void close();
 
 
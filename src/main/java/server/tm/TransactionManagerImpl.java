@@ -8,9 +8,23 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * xid文件结构：[XidCounter][Xid1Status][Xid2Status]...，每个状态占一个字节
+ * 打开时把所有状态读进内存里的XidStatusTable，之后查状态只查内存；
+ * 改状态时先写文件再改内存；提交/撤销不fsync，持久性靠WAL里的提交/撤销日志，
+ * checkpoint删日志之前调flush把状态落盘，崩溃后恢复时照日志补上没落盘的状态
+ *
+ * xid分配：
+ * 1.XidCounter记的是已经预留到的最大xid，不是已经用掉的；begin只在内存里加一，不写文件
+ * 2.用到预留范围外时再往后预留一批：先把这批xid的状态位置补成active并fsync，再改XidCounter并fsync，
+ *   在两步中间崩溃只会多出一截没登记的尾巴，打开时截掉
+ * 3.正常关闭时把XidCounter收回到真正用掉的xid；崩溃后预留了没用上的xid和没结束的事务一样，恢复时标成aborted
+ */
 public class TransactionManagerImpl implements TransactionManager{
 
     public static final int XID_HEADER_LENGTH = 8;
@@ -25,17 +39,26 @@ public class TransactionManagerImpl implements TransactionManager{
 
     private static final long SUPER_XID = 0L;
 
+    private static final int LOAD_BUFFER_SIZE = 1 << 16;
+    private static final int XID_RESERVE_BATCH = 1024;
 
     private RandomAccessFile raf;
     private FileChannel fc;
-    private long xidCounter;
+    // 已经预留到的最大xid
+    private volatile long xidCounter;
+    // 已经分配出去的最大xid
+    private AtomicLong lastXid;
     private Lock counterLock;
+    private XidStatusTable statuses;
 
     public TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.raf = raf;
         this.fc = fc;
         this.counterLock = new ReentrantLock();
+        this.statuses = new XidStatusTable();
         checkXidCounter();
+        loadStatuses();
+        this.lastXid = new AtomicLong(xidCounter);
     }
 
     private void checkXidCounter() {
@@ -58,9 +81,42 @@ public class TransactionManagerImpl implements TransactionManager{
 
         xidCounter = Parser.byte2long(buf.array());
         long end = getXidPosition(xidCounter + 1);
-        if(end != xidFileLength) {
+        if(end > xidFileLength) {
             Panic.panic(Error.BadXidFileException());
         }
+        // 预留到一半崩溃留下的尾巴
+        if(end < xidFileLength) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void loadStatuses() {
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        long xid = 1;
+        while(xid <= xidCounter) {
+            buf.clear();
+            buf.limit((int) Math.min(LOAD_BUFFER_SIZE, xidCounter - xid + 1));
+            try {
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXidFileException());
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            for (int i = 0; i < buf.limit(); i++) {
+                byte state = buf.get(i);
+                if(state != TRAN_ACTIVE) {
+                    statuses.set(xid + i, state);
+                }
+            }
+            xid += buf.limit();
+        }
     }
 
     private long getXidPosition(long xidCounter) {
@@ -69,25 +125,42 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public long begin() {
+        long xid = lastXid.incrementAndGet();
+        if(xid > xidCounter) {
+            reserveXid(xid);
+        }
+        return xid;
+    }
+
+    // 预留到至少xid，预留范围里的xid状态都是active
+    private void reserveXid(long xid) {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            updateXid(xid, TRAN_ACTIVE);
-            incrXidCounter();
-            return xid;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            if(xid <= xidCounter) {
+                return;
+            }
+            long reserved = xid + XID_RESERVE_BATCH - 1;
+            long start = getXidPosition(xidCounter + 1);
+            ByteBuffer zeros = ByteBuffer.allocate((int) (getXidPosition(reserved + 1) - start));
+            try {
+                while(zeros.hasRemaining()) {
+                    fc.write(zeros, start + zeros.position());
+                }
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            writeXidCounter(reserved);
+            xidCounter = reserved;
         } finally {
             counterLock.unlock();
         }
     }
 
-    private void incrXidCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2byte(xidCounter));
+    private void writeXidCounter(long counter) {
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2byte(counter));
         try {
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -104,11 +177,15 @@ public class TransactionManagerImpl implements TransactionManager{
         ByteBuffer buf = ByteBuffer.wrap(temp);
         long xidPosition = getXidPosition(xid);
         try {
-            fc.position(xidPosition);
-            fc.read(buf);
+            fc.write(buf, xidPosition);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        statuses.set(xid, i);
+    }
+
+    @Override
+    public void flush() {
         try {
             fc.force(false);
         } catch (IOException e) {
@@ -121,11 +198,48 @@ public class TransactionManagerImpl implements TransactionManager{
         updateXid(xid, TRAN_COMMITED);
     }
 
+    @Override
+    public void commitInMemory(long xid) {
+        statuses.set(xid, TRAN_COMMITED);
+    }
+
     @Override
     public void abort(long xid) {
         updateXid(xid, TRAN_ABORTED);
     }
 
+    @Override
+    public void abortUnfinished() {
+        // 一段连续的active只写一次，最后统一fsync
+        long runStart = -1;
+        long last = lastXid.get();
+        for (long xid = 1; xid <= last + 1; xid++) {
+            boolean active = xid <= last && statuses.get(xid) == TRAN_ACTIVE;
+            if(active && runStart < 0) {
+                runStart = xid;
+            } else if(!active && runStart >= 0) {
+                byte[] aborted = new byte[(int) (xid - runStart) * XID_FIELD_LENGTH];
+                Arrays.fill(aborted, TRAN_ABORTED);
+                try {
+                    fc.write(ByteBuffer.wrap(aborted), getXidPosition(runStart));
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                runStart = -1;
+            }
+        }
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        for (long xid = 1; xid <= last; xid++) {
+            if(statuses.get(xid) == TRAN_ACTIVE) {
+                statuses.set(xid, TRAN_ABORTED);
+            }
+        }
+    }
+
     @Override
     public boolean isActive(long xid) {
         if(xid == SUPER_XID) return false;
@@ -133,15 +247,7 @@ public class TransactionManagerImpl implements TransactionManager{
     }
 
     private boolean checkXid(long xid, byte state) {
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_LENGTH]);
-        long xidPosition = getXidPosition(xid);
-        try {
-            fc.position(xidPosition);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == state;
+        return statuses.get(xid) == state;
     }
 
     @Override
@@ -158,6 +264,21 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void close() {
+        // 没用上的预留收回来，先改XidCounter再截文件，中间崩溃打开时会截掉尾巴
+        counterLock.lock();
+        try {
+            long last = lastXid.get();
+            if(last < xidCounter) {
+                writeXidCounter(last);
+                fc.truncate(getXidPosition(last + 1));
+                xidCounter = last;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            counterLock.unlock();
+        }
+        flush();
         try {
             raf.close();
             fc.close();
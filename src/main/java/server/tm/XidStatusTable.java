@@ -0,0 +1,70 @@
+package server.tm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * xid状态在内存里的副本，每个xid占2位，一个long放32个xid，状态值和xid文件里的一样
+ * 按块分配，扩容只换块数组、不拷块里的数据，改状态用CAS，扩容时不会丢掉别的线程的修改
+ * 还没分配到的xid读出来是0，也就是active，和xid文件的初始值一致
+ */
+class XidStatusTable {
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS_PER_XID;
+    private static final long STATE_MASK = (1L << BITS_PER_XID) - 1;
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int XIDS_PER_CHUNK = 1 << CHUNK_SHIFT;
+    private static final int WORDS_PER_CHUNK = XIDS_PER_CHUNK / XIDS_PER_WORD;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    byte get(long xid) {
+        AtomicLongArray[] cs = chunks;
+        int c = (int) (xid >>> CHUNK_SHIFT);
+        if(c >= cs.length) {
+            return 0;
+        }
+        int i = (int) (xid & (XIDS_PER_CHUNK - 1));
+        long word = cs[c].get(i / XIDS_PER_WORD);
+        return (byte) ((word >>> shiftOf(i)) & STATE_MASK);
+    }
+
+    void set(long xid, byte state) {
+        AtomicLongArray chunk = chunkOf(xid);
+        int i = (int) (xid & (XIDS_PER_CHUNK - 1));
+        int index = i / XIDS_PER_WORD;
+        int shift = shiftOf(i);
+        while(true) {
+            long old = chunk.get(index);
+            long word = (old & ~(STATE_MASK << shift)) | ((long) state << shift);
+            if(chunk.compareAndSet(index, old, word)) {
+                return;
+            }
+        }
+    }
+
+    private static int shiftOf(int i) {
+        return (i % XIDS_PER_WORD) * BITS_PER_XID;
+    }
+
+    private AtomicLongArray chunkOf(long xid) {
+        int c = (int) (xid >>> CHUNK_SHIFT);
+        AtomicLongArray[] cs = chunks;
+        if(c < cs.length) {
+            return cs[c];
+        }
+        synchronized (this) {
+            cs = chunks;
+            if(c >= cs.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[c + 1];
+                System.arraycopy(cs, 0, grown, 0, cs.length);
+                for (int i = cs.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(WORDS_PER_CHUNK);
+                }
+                chunks = grown;
+                cs = grown;
+            }
+            return cs[c];
+        }
+    }
+}
@@ -6,8 +6,6 @@ import server.tm.TransactionManagerImpl;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import static server.dm.page.PageX.OF_DATE;
-
 public class Parser {
 
     public static long byte2long(byte[] buf) {
@@ -24,7 +22,7 @@ public class Parser {
     }
 
     public static short byte2short(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, OF_DATE);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, Short.SIZE / Byte.SIZE);
         return buffer.getShort();
     }
 
@@ -6,4 +6,12 @@ public class Types {
         long l1 = (short) offset;
         return l0 << 32 | l1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int) (uid >>> 32);
+    }
+
+    public static int uidToOffset(long uid) {
+        return (int) (uid & ((1L << 16) - 1));
+    }
 }
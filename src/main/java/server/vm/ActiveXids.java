@@ -0,0 +1,103 @@
+package server.vm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 正在进行的事务的xid表，不加锁
+ * 每个事务占一个槽，槽里是0（空闲）、PENDING（占了槽还没拿到xid）或者xid
+ *
+ * 先占槽再向TransactionManager要xid：xid比自己小的事务，要xid时一定已经占好了槽，
+ * 取快照时碰到PENDING就等它拿到xid，就不会漏掉比自己小、还没登记上的事务
+ * 槽按块分配，扩容只换块数组，和XidStatusTable一样
+ */
+class ActiveXids {
+    private static final long FREE = 0;
+    private static final long PENDING = -1;
+
+    private static final int SLOTS_PER_CHUNK = 64;
+    private static final int MAX_SPINS = 64;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+    // 同一个线程（会话）大多会再次用到自己上次的槽
+    private final ThreadLocal<int[]> hint = ThreadLocal.withInitial(() -> new int[1]);
+    // 取快照时收集xid用，每个线程一块，不够再换大的
+    private final ThreadLocal<long[]> scratch = ThreadLocal.withInitial(() -> new long[SLOTS_PER_CHUNK]);
+
+    /**
+     * 占一个槽，返回槽号，之后要用publish填上xid
+     */
+    int claim() {
+        int[] h = hint.get();
+        while(true) {
+            AtomicLongArray[] cs = chunks;
+            int total = cs.length * SLOTS_PER_CHUNK;
+            for (int n = 0; n < total; n++) {
+                int slot = (h[0] + n) % total;
+                AtomicLongArray chunk = cs[slot / SLOTS_PER_CHUNK];
+                int i = slot % SLOTS_PER_CHUNK;
+                if(chunk.get(i) == FREE && chunk.compareAndSet(i, FREE, PENDING)) {
+                    h[0] = slot;
+                    return slot;
+                }
+            }
+            grow(cs.length);
+        }
+    }
+
+    void publish(int slot, long xid) {
+        chunkOf(slot).set(slot % SLOTS_PER_CHUNK, xid);
+    }
+
+    void release(int slot) {
+        chunkOf(slot).set(slot % SLOTS_PER_CHUNK, FREE);
+    }
+
+    /**
+     * 给xid取快照：xid之前开始、现在还没结束的事务，不含xid自己
+     */
+    Snapshot snapshot(long xid) {
+        long[] buf = scratch.get();
+        int n = 0;
+        AtomicLongArray[] cs = chunks;
+        for (AtomicLongArray chunk : cs) {
+            for (int i = 0; i < SLOTS_PER_CHUNK; i++) {
+                long x = chunk.get(i);
+                for (int spins = 0; x == PENDING; spins++) {
+                    // 占槽的线程马上就能拿到xid，等不到多半是它被换下CPU了，让出去
+                    if(spins < MAX_SPINS) {
+                        Thread.onSpinWait();
+                    } else {
+                        Thread.yield();
+                    }
+                    x = chunk.get(i);
+                }
+                if(x == FREE || x >= xid) {
+                    continue;
+                }
+                if(n == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    scratch.set(buf);
+                }
+                buf[n++] = x;
+            }
+        }
+        long[] xip = Arrays.copyOf(buf, n);
+        Arrays.sort(xip);
+        return new Snapshot(xid, xip);
+    }
+
+    private AtomicLongArray chunkOf(int slot) {
+        return chunks[slot / SLOTS_PER_CHUNK];
+    }
+
+    private synchronized void grow(int seen) {
+        AtomicLongArray[] cs = chunks;
+        if(cs.length != seen) {
+            return;
+        }
+        AtomicLongArray[] grown = Arrays.copyOf(cs, cs.length + 1);
+        grown[cs.length] = new AtomicLongArray(SLOTS_PER_CHUNK);
+        chunks = grown;
+    }
+}
@@ -1,6 +1,7 @@
 package server.vm;
 
 import com.google.common.primitives.Bytes;
+import common.Error;
 import common.SubArray;
 import server.dm.dataItem.DataItem;
 import server.utils.Panic;
@@ -20,6 +21,8 @@ public class Entry {
     private long uid;
     private DataItem dm;
     private VersionManager vm;
+    // 有人引用时才占着底下的DataItem，缓存里没人用的Entry不钉着DataItem和它所在的页
+    private int refs;
 
     public static Entry newEntry(long uid, DataItem dm, VersionManager vm) {
         if(dm == null) return null;
@@ -46,8 +49,34 @@ public class Entry {
         ((VersionManagerImpl)vm).releaseEntry(this);
     }
 
-    public void remove() {
-        dm.release();
+    /**
+     * 拿到引用时占住DataItem，刚加载进来的Entry直接用加载时读到的那个
+     */
+    synchronized void pin() throws Exception {
+        if(refs++ > 0) {
+            return;
+        }
+        if(dm == null) {
+            dm = ((VersionManagerImpl) vm).dm.read(uid);
+            if(dm == null) {
+                refs--;
+                throw Error.NullEntryException;
+            }
+        }
+    }
+
+    synchronized void unpin() {
+        if(--refs == 0) {
+            dm.release();
+            dm = null;
+        }
+    }
+
+    public synchronized void remove() {
+        if(dm != null) {
+            dm.release();
+            dm = null;
+        }
     }
 
     public byte[] data() {
@@ -0,0 +1,30 @@
+package server.vm;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务开始时的快照：[xmin, xmax)之间、当时还没结束的事务，升序存在xip里
+ * xmax是取快照的事务自己的xid，xmin是xip里最小的xid，没有的话等于xmax
+ * 比xmin小的事务当时都已经结束了，不小于xmax的是之后才开始的，这两种不用查xip
+ */
+public class Snapshot {
+    public final long xmin;
+    public final long xmax;
+    private final long[] xip;
+
+    Snapshot(long xmax, long[] xip) {
+        this.xmax = xmax;
+        this.xip = xip;
+        this.xmin = xip.length == 0 ? xmax : xip[0];
+    }
+
+    /**
+     * xid在取快照时是否还没结束
+     */
+    public boolean isInProgress(long xid) {
+        if(xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(xip, xid) >= 0;
+    }
+}
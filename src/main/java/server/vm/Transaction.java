@@ -2,25 +2,23 @@ package server.vm;
 
 import server.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public boolean async;
+    public Snapshot snapshot;
+    // 在ActiveXids里占的槽
+    int slot;
     public Exception err;
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> activeTransaction) {
+    public static Transaction newTransaction(long xid, int level, int slot, ActiveXids activeXids) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.slot = slot;
         if (level == 1) {
-            t.snapshot = new HashMap<>();
-            for (Long x : activeTransaction.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = activeXids.snapshot(xid);
         }
         return t;
     }
@@ -29,6 +27,6 @@ public class Transaction {
         if (xmax == TransactionManagerImpl.SUPER_ID) {
             return false;
         }
-        return snapshot.containsKey(xmax);
+        return snapshot.isInProgress(xmax);
     }
 }
@@ -8,7 +8,10 @@ public interface VersionManager {
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
-    long begin(int level);
+    /**
+     * @param async 异步提交：提交日志写进缓冲就返回，崩溃时可能丢掉最近一个提交窗口内提交的事务
+     */
+    long begin(int level, boolean async);
     void commit(long xid);
     void abort(long xid);
 
@@ -6,36 +6,54 @@ import server.dm.DataManager;
 import server.tm.TransactionManager;
 import server.utils.Panic;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager{
 
     private TransactionManager tm;
     public DataManager dm;
-    private Lock lock;
-    // todo 是不是能优化成chm
     private Map<Long, Transaction> activeTransaction;
+    // 会话线程自己begin的事务，读写先看它，xid对不上（别的线程开的事务）再查activeTransaction
+    private ThreadLocal<Transaction> current;
+    ActiveXids activeXids;
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        this(tm, dm, 0);
+    }
+
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, int maxResource) {
+        super(maxResource);
         this.tm = tm;
         this.dm = dm;
-        this.lock = new ReentrantLock();
-        this.activeTransaction = new HashMap<Long, Transaction>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.current = new ThreadLocal<>();
+        this.activeXids = new ActiveXids();
         this.lt = new LockTable();
     }
 
 
+    private Transaction transactionOf(long xid) {
+        Transaction t = current.get();
+        if(t != null && t.xid == xid) {
+            return t;
+        }
+        return activeTransaction.get(xid);
+    }
+
+    // 事务结束了，会话线程上的句柄也要清掉，不然一直引用着
+    private void endTransaction(Transaction t) {
+        activeTransaction.remove(t.xid);
+        if(current.get() == t) {
+            current.remove();
+        }
+    }
+
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        // todo 为什么要加锁？
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = transactionOf(xid);
 
         if(t.err != null) {
             throw t.err;
@@ -43,7 +61,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         Entry entry = null;
         try {
-            entry = super.get(uid);
+            entry = getEntry(uid);
         } catch (Exception e) {
             if(e == Error.NullEntryException) {
                 return null;
@@ -64,9 +82,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = transactionOf(xid);
 
         if(t.err != null) {
             throw t.err;
@@ -79,16 +95,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = transactionOf(xid);
 
         if(t.err != null) {
             throw t.err;
         }
         Entry entry = null;
         try {
-            entry = super.get(uid);
+            entry = getEntry(uid);
         } catch (Exception e) {
             if (e == Error.NullEntryException) {
                 return false;
@@ -137,36 +151,35 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
-        Transaction transaction = activeTransaction.get(xid);
+        Transaction transaction = transactionOf(xid);
         if(!autoAborted) {
-            activeTransaction.remove(xid);
+            endTransaction(transaction);
         }
-        lock.unlock();
 
         if(transaction.autoAborted) return;
         lt.remove(xid);
+        dm.logAbort(xid);
         tm.abort(xid);
+        dm.endTransaction(xid);
+        activeXids.release(transaction.slot);
     }
 
     @Override
-    public long begin(int level) {
-        lock.lock();
-        try {
-            long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
-            activeTransaction.put(xid, t);
-            return xid;
-        } finally {
-            lock.unlock();
-        }
+    public long begin(int level, boolean async) {
+        // 先占槽再拿xid，取快照不用锁
+        int slot = activeXids.claim();
+        long xid = tm.begin();
+        activeXids.publish(slot, xid);
+        Transaction t = Transaction.newTransaction(xid, level, slot, activeXids);
+        t.async = async;
+        activeTransaction.put(xid, t);
+        current.set(t);
+        return xid;
     }
 
     @Override
     public void commit(long xid) {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = transactionOf(xid);
 
         try {
             if(t.err != null) {
@@ -176,12 +189,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(e);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+        endTransaction(t);
 
         lt.remove(xid);
-        tm.commit(xid);
+        if(t.async) {
+            // 异步提交：不等提交日志落盘，状态先只改内存，落盘后再由写日志线程写进xid文件
+            dm.logCommitAsync(xid);
+            tm.commitInMemory(xid);
+        } else {
+            // 组提交：提交日志随所在批次一起落盘就算提交了，再把状态记为已提交
+            dm.logCommit(xid);
+            tm.commit(xid);
+        }
+        dm.endTransaction(xid);
+        // 状态改成已提交之后才能从ActiveXids里去掉，否则之后的快照会把还没提交的它当成已经结束
+        activeXids.release(t.slot);
     }
 
     @Override
@@ -189,7 +211,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid, false);
     }
 
+    // 拿到Entry并占住它底下的DataItem，用完调用entry.release()
+    private Entry getEntry(long uid) throws Exception {
+        Entry entry = super.get(uid);
+        try {
+            entry.pin();
+        } catch (Exception e) {
+            super.release(uid);
+            throw e;
+        }
+        return entry;
+    }
+
     public void releaseEntry(Entry entry) {
+        entry.unpin();
         super.release(entry.getUid());
     }
 
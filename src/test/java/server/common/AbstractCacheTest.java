@@ -0,0 +1,125 @@
+package server.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractCacheTest {
+
+    static class MockCache extends AbstractCache<Long> {
+        List<Long> loaded = new ArrayList<>();
+        List<Long> released = new ArrayList<>();
+
+        MockCache(int maxResource) {
+            super(maxResource);
+        }
+
+        MockCache(int maxResource, IntFunction<EvictionPolicy> policyFactory) {
+            super(maxResource, policyFactory);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            loaded.add(key);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            released.add(obj);
+        }
+    }
+
+    @Test
+    public void testReleaseOnlyUnpins() {
+        MockCache cache = new MockCache(10);
+        cache.get(1);
+        cache.get(1);
+        cache.release(1);
+        cache.release(1);
+        cache.get(1);
+        assertEquals(1, cache.loaded.size());
+        assertTrue(cache.released.isEmpty());
+    }
+
+    @Test
+    public void testEvictUnpinnedOnly() {
+        MockCache cache = new MockCache(10);
+        cache.get(0);
+        for (long i = 1; i < 30; i++) {
+            cache.get(i);
+            cache.release(i);
+        }
+        assertTrue(!cache.released.contains(0L));
+        cache.get(0);
+        assertEquals(1, cache.loaded.stream().filter(k -> k == 0L).count());
+    }
+
+    @Test
+    public void testTinyLfuScanResistant() {
+        MockCache cache = new MockCache(64, TinyLfuPolicy::new);
+        for (int round = 0; round < 5; round++) {
+            for (long i = 0; i < 40; i++) {
+                cache.get(i);
+                cache.release(i);
+            }
+        }
+        for (long i = 1000; i < 3000; i++) {
+            cache.get(i);
+            cache.release(i);
+        }
+        long hitsBefore = cache.getHitCount();
+        for (long i = 0; i < 40; i++) {
+            cache.get(i);
+            cache.release(i);
+        }
+        assertTrue(cache.getHitCount() - hitsBefore >= 36);
+    }
+
+    @Test
+    public void testGetWaitsForWriteBack() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AbstractCache<Long> cache = new AbstractCache<Long>(1) {
+            @Override
+            protected Long getForCache(long key) {
+                events.add("load " + key);
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+                writing.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                events.add("write back " + obj);
+            }
+        };
+        cache.get(1);
+        cache.release(1);
+
+        // 加载2会把1挤出去，写回卡住的时候去get 1，得等写回做完再加载
+        Thread evictor = new Thread(() -> cache.get(2));
+        evictor.start();
+        writing.await();
+        Thread loader = new Thread(() -> cache.get(1));
+        loader.start();
+        Thread.sleep(100);
+        assertTrue(loader.isAlive());
+        finish.countDown();
+        evictor.join();
+        loader.join();
+        assertTrue(events.indexOf("write back 1") < events.lastIndexOf("load 1"));
+    }
+}
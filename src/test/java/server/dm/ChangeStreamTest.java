@@ -0,0 +1,148 @@
+package server.dm;
+
+import common.SubArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import server.common.MemoryBudget;
+import server.dm.dataItem.DataItem;
+import server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChangeStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManagerImpl dm;
+
+    @Before
+    public void setUp() {
+        String path = new File(folder.getRoot(), "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = (DataManagerImpl) DataManager.create(path, new MemoryBudget(1 << 22), tm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private void commit(long xid) {
+        dm.logCommit(xid);
+        tm.commit(xid);
+    }
+
+    private static List<Long> xidsOf(List<Change> changes) {
+        List<Long> xids = new ArrayList<>();
+        for (Change change : changes) {
+            xids.add(change.xid);
+        }
+        return xids;
+    }
+
+    private int logSegments() {
+        String[] names = folder.getRoot().list((dir, name) -> name.startsWith("db.") && name.endsWith(".log"));
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void testEmitsInCommitOrder() {
+        ChangeStream cs = dm.openChangeStream(0);
+        long x1 = tm.begin();
+        long x2 = tm.begin();
+        long x3 = tm.begin();
+        dm.insert(x1, "a".getBytes());
+        dm.insert(x2, "b".getBytes());
+        dm.insert(x3, "c".getBytes());
+        dm.insert(x1, "d".getBytes());
+        commit(x3);
+        commit(x1);
+        commit(x2);
+
+        List<Change> changes = new ArrayList<>();
+        assertEquals(3, cs.poll(changes::add));
+        assertEquals(Arrays.asList(x3, x1, x1, x2), xidsOf(changes));
+        assertArrayEquals("a".getBytes(), changes.get(1).after);
+        assertArrayEquals("d".getBytes(), changes.get(2).after);
+        cs.close();
+    }
+
+    @Test
+    public void testDropsAbortedTransactions() {
+        ChangeStream cs = dm.openChangeStream(0);
+        long x1 = tm.begin();
+        long x2 = tm.begin();
+        dm.insert(x1, "keep".getBytes());
+        dm.insert(x2, "gone".getBytes());
+        dm.logAbort(x2);
+        tm.abort(x2);
+        commit(x1);
+
+        List<Change> changes = new ArrayList<>();
+        assertEquals(1, cs.poll(changes::add));
+        assertEquals(Arrays.asList(x1), xidsOf(changes));
+        cs.close();
+    }
+
+    @Test
+    public void testSkipsTransactionsBegunBeforeFromLsn() {
+        long x1 = tm.begin();
+        dm.insert(x1, "before".getBytes());
+        long fromLsn = dm.lg.currentLsn();
+        dm.insert(x1, "after".getBytes());
+        long x2 = tm.begin();
+        dm.insert(x2, "new".getBytes());
+        commit(x1);
+        commit(x2);
+
+        ChangeStream cs = dm.openChangeStream(fromLsn);
+        List<Change> changes = new ArrayList<>();
+        assertEquals(1, cs.poll(changes::add));
+        assertEquals(Arrays.asList(x2), xidsOf(changes));
+        cs.close();
+    }
+
+    @Test
+    public void testPositionHoldsLogSegments() {
+        ChangeStream cs = dm.openChangeStream(0);
+
+        // 写够一个日志段（64MB），让checkpoint有段可删
+        byte[] row = new byte[4000];
+        long xid = tm.begin();
+        long uid = dm.insert(xid, row);
+        for (int i = 1; i <= 9000; i++) {
+            DataItem di = dm.read(uid);
+            di.before();
+            SubArray raw = di.data();
+            Arrays.fill(raw.raw, raw.start, raw.end, (byte) i);
+            di.after(xid);
+            di.release();
+        }
+        commit(xid);
+
+        // 流还没读过，第一段不能删
+        dm.checkpoint();
+        assertEquals(2, logSegments());
+
+        // 读完之后position到了末尾，再checkpoint就能删了（没有新日志的话checkpoint什么也不做）
+        long x2 = tm.begin();
+        dm.insert(x2, "more".getBytes());
+        commit(x2);
+        assertEquals(2, cs.poll(change -> {}));
+        dm.checkpoint();
+        assertEquals(1, logSegments());
+        cs.close();
+    }
+}
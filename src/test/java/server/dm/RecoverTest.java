@@ -0,0 +1,176 @@
+package server.dm;
+
+import common.SubArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import server.common.MemoryBudget;
+import server.dm.dataItem.DataItem;
+import server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 崩溃用“不close直接丢掉实例”模拟：日志先flush，页缓存里的脏页和xid文件里没写的状态都算丢了
+ */
+public class RecoverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MemoryBudget budget = new MemoryBudget(1 << 22);
+
+    private String path() {
+        return new File(folder.getRoot(), "db").getPath();
+    }
+
+    private DataManager open(TransactionManager tm) {
+        return DataManager.open(path(), budget, 0, false, 1, false, 0, tm);
+    }
+
+    private static byte[] read(DataManager dm, long uid) {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return null;
+        }
+        try {
+            return di.data().getData();
+        } finally {
+            di.release();
+        }
+    }
+
+    private static void update(DataManager dm, long xid, long uid, byte[] data) {
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray raw = di.data();
+        System.arraycopy(data, 0, raw.raw, raw.start, data.length);
+        di.after(xid);
+        di.release();
+    }
+
+    private int logSegments() {
+        String[] names = folder.getRoot().list((dir, name) -> name.startsWith("db.") && name.endsWith(".log"));
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void testCommitWithoutXidWriteSurvivesCrash() {
+        TransactionManager tm = TransactionManager.create(path());
+        DataManager dm = DataManager.create(path(), budget, tm);
+        long xid = tm.begin();
+        long uid = dm.insert(xid, "hello".getBytes());
+        // 提交日志落盘了，xid文件还没来得及改就崩溃
+        dm.logCommit(xid);
+
+        tm = TransactionManager.open(path());
+        dm = open(tm);
+        assertTrue(tm.isCommitted(xid));
+        assertArrayEquals("hello".getBytes(), read(dm, uid));
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testCheckpointBetweenCommitLogAndXidWrite() {
+        TransactionManager tm = TransactionManager.create(path());
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path(), budget, tm);
+        long xid = tm.begin();
+        long uid = dm.insert(xid, "hello".getBytes());
+        dm.logCommit(xid);
+        // checkpoint插在提交日志和改xid文件之间，之后崩溃，xid文件里它还是active
+        dm.checkpoint();
+
+        tm = TransactionManager.open(path());
+        DataManager reopened = open(tm);
+        assertTrue(tm.isCommitted(xid));
+        assertArrayEquals("hello".getBytes(), read(reopened, uid));
+        reopened.close();
+        tm.close();
+    }
+
+    @Test
+    public void testCheckpointAfterAsyncCommit() {
+        TransactionManager tm = TransactionManager.create(path());
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path(), budget, tm);
+        long xid = tm.begin();
+        long uid = dm.insert(xid, "hello".getBytes());
+        dm.logCommitAsync(xid);
+        tm.commitInMemory(xid);
+        dm.checkpoint();
+
+        tm = TransactionManager.open(path());
+        DataManager reopened = open(tm);
+        assertTrue(tm.isCommitted(xid));
+        assertArrayEquals("hello".getBytes(), read(reopened, uid));
+        reopened.close();
+        tm.close();
+    }
+
+    @Test
+    public void testUnfinishedTransactionIsUndone() {
+        TransactionManager tm = TransactionManager.create(path());
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path(), budget, tm);
+        long x1 = tm.begin();
+        long u1 = dm.insert(x1, "hello".getBytes());
+        dm.logCommit(x1);
+        tm.commit(x1);
+
+        long x2 = tm.begin();
+        update(dm, x2, u1, "jello".getBytes());
+        long u2 = dm.insert(x2, "loser".getBytes());
+        // 没结束的改动也写回数据文件，恢复时得靠undo改回来
+        dm.checkpoint();
+
+        tm = TransactionManager.open(path());
+        DataManager reopened = open(tm);
+        assertTrue(tm.isAborted(x2));
+        assertArrayEquals("hello".getBytes(), read(reopened, u1));
+        assertNull(read(reopened, u2));
+        reopened.close();
+        tm.close();
+    }
+
+    @Test
+    public void testCheckpointKeepsLogOfActiveTransaction() {
+        TransactionManager tm = TransactionManager.create(path());
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path(), budget, tm);
+        long loser = tm.begin();
+        long u1 = dm.insert(loser, "loser".getBytes());
+
+        // 写够一个日志段（64MB），让checkpoint有段可删
+        byte[] row = new byte[4000];
+        long x2 = tm.begin();
+        long u2 = dm.insert(x2, row);
+        dm.logCommit(x2);
+        tm.commit(x2);
+        long x3 = tm.begin();
+        for (int i = 1; i <= 9000; i++) {
+            Arrays.fill(row, (byte) i);
+            update(dm, x3, u2, row);
+        }
+        dm.logCommit(x3);
+        tm.commit(x3);
+
+        // 页都写回了，但loser的第一条日志还在第一段里，undo要用，这一段不能删
+        dm.checkpoint();
+        assertEquals(2, logSegments());
+
+        tm = TransactionManager.open(path());
+        DataManager reopened = open(tm);
+        assertTrue(tm.isAborted(loser));
+        assertFalse(tm.isCommitted(loser));
+        assertTrue(tm.isCommitted(x3));
+        assertNull(read(reopened, u1));
+        assertArrayEquals(row, read(reopened, u2));
+        reopened.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,96 @@
+package server.tm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import server.utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path() {
+        return new File(folder.getRoot(), "db").getPath();
+    }
+
+    private File xidFile() {
+        return new File(path() + TransactionManagerImpl.XID_SUFFIX);
+    }
+
+    private long xidCounter() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile(), "r")) {
+            byte[] header = new byte[TransactionManagerImpl.XID_HEADER_LENGTH];
+            raf.readFully(header);
+            return Parser.byte2long(header);
+        }
+    }
+
+    @Test
+    public void testUncleanReopenAbortsReservedXids() {
+        TransactionManager tm = TransactionManager.create(path());
+        long x1 = tm.begin();
+        long x2 = tm.begin();
+        long x3 = tm.begin();
+        tm.commit(x1);
+        tm.abort(x2);
+        // 不close，预留的那批xid留在文件里
+
+        tm = TransactionManager.open(path());
+        long reserved = xidFile().length() - TransactionManagerImpl.XID_HEADER_LENGTH;
+        assertTrue(reserved > x3);
+        tm.abortUnfinished();
+        assertTrue(tm.isCommitted(x1));
+        assertTrue(tm.isAborted(x2));
+        assertTrue(tm.isAborted(x3));
+        assertTrue(tm.isAborted(x3 + 1));
+        assertTrue(tm.isAborted(reserved));
+        // 预留过的xid不会再分配出去
+        assertEquals(reserved + 1, tm.begin());
+        tm.close();
+    }
+
+    @Test
+    public void testPartialReservationTailIsTruncated() throws IOException {
+        TransactionManager tm = TransactionManager.create(path());
+        long xid = tm.begin();
+        tm.commit(xid);
+        tm.close();
+
+        // 预留时状态位置补好了，XidCounter还没改就崩溃
+        long length = xidFile().length();
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile(), "rw")) {
+            raf.setLength(length + 100);
+        }
+
+        tm = TransactionManager.open(path());
+        assertEquals(length, xidFile().length());
+        assertTrue(tm.isCommitted(xid));
+        assertEquals(xid + 1, tm.begin());
+        tm.close();
+    }
+
+    @Test
+    public void testCloseShrinksCounter() throws IOException {
+        TransactionManager tm = TransactionManager.create(path());
+        for (int i = 0; i < 3; i++) {
+            tm.commit(tm.begin());
+        }
+        assertTrue(xidCounter() > 3);
+        tm.close();
+
+        assertEquals(3, xidCounter());
+        assertEquals(TransactionManagerImpl.XID_HEADER_LENGTH + 3, xidFile().length());
+        tm = TransactionManager.open(path());
+        assertTrue(tm.isCommitted(3));
+        assertEquals(4, tm.begin());
+        tm.close();
+    }
+}
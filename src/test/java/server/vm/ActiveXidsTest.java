@@ -0,0 +1,175 @@
+package server.vm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import server.common.MemoryBudget;
+import server.dm.DataManager;
+import server.tm.TransactionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ActiveXidsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 20000;
+    // 只查最近这么多个xid，竞争都发生在这里
+    private static final int WINDOW = 256;
+
+    /**
+     * 和VersionManagerImpl.begin一样先占槽再拿xid，取完快照检查：
+     * 快照里算作已结束的更小的xid，取快照时一定已经结束了（结束标记在放槽之前打上）
+     */
+    @Test
+    public void testSnapshotNeverMissesSmallerInProgressXid() throws InterruptedException {
+        ActiveXids activeXids = new ActiveXids();
+        AtomicLong nextXid = new AtomicLong();
+        AtomicIntegerArray finished = new AtomicIntegerArray(THREADS * ROUNDS + 1);
+        AtomicReference<String> error = new AtomicReference<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                for (int r = 0; r < ROUNDS && error.get() == null; r++) {
+                    int slot = activeXids.claim();
+                    // 占了槽、拿xid前后被换下CPU的情况多制造一些
+                    pause();
+                    long xid = nextXid.incrementAndGet();
+                    pause();
+                    activeXids.publish(slot, xid);
+                    Snapshot snapshot = activeXids.snapshot(xid);
+                    for (long y = Math.max(1, xid - WINDOW); y < xid; y++) {
+                        if(!snapshot.isInProgress(y) && finished.get((int) y) == 0) {
+                            error.compareAndSet(null, "snapshot of " + xid + " missed in-progress " + y);
+                        }
+                    }
+                    pause();
+                    finished.set((int) xid, 1);
+                    activeXids.release(slot);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error.get());
+    }
+
+    private static void pause() {
+        if(ThreadLocalRandom.current().nextInt(4) == 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 包一层TransactionManager，状态改掉的那一刻看槽还在不在
+     */
+    private static class RecordingTransactionManager implements TransactionManager {
+        private final TransactionManager tm;
+        VersionManagerImpl vm;
+        final List<Boolean> heldAtStateChange = new ArrayList<>();
+
+        RecordingTransactionManager(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        private void record(long xid) {
+            heldAtStateChange.add(vm.activeXids.snapshot(Long.MAX_VALUE).isInProgress(xid));
+        }
+
+        @Override
+        public long begin() {
+            return tm.begin();
+        }
+
+        @Override
+        public void commit(long xid) {
+            tm.commit(xid);
+            record(xid);
+        }
+
+        @Override
+        public void commitInMemory(long xid) {
+            tm.commitInMemory(xid);
+            record(xid);
+        }
+
+        @Override
+        public void abort(long xid) {
+            tm.abort(xid);
+            record(xid);
+        }
+
+        @Override
+        public boolean isActive(long xid) {
+            return tm.isActive(xid);
+        }
+
+        @Override
+        public boolean isCommitted(long xid) {
+            return tm.isCommitted(xid);
+        }
+
+        @Override
+        public boolean isAborted(long xid) {
+            return tm.isAborted(xid);
+        }
+
+        @Override
+        public void abortUnfinished() {
+            tm.abortUnfinished();
+        }
+
+        @Override
+        public void flush() {
+            tm.flush();
+        }
+
+        @Override
+        public void close() {
+            tm.close();
+        }
+    }
+
+    @Test
+    public void testSlotReleasedAfterStateChange() {
+        String path = new File(folder.getRoot(), "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, new MemoryBudget(1 << 22), tm);
+        RecordingTransactionManager recording = new RecordingTransactionManager(tm);
+        VersionManagerImpl vm = new VersionManagerImpl(recording, dm);
+        recording.vm = vm;
+
+        long committed = vm.begin(1, false);
+        vm.commit(committed);
+        long asyncCommitted = vm.begin(1, true);
+        vm.commit(asyncCommitted);
+        long aborted = vm.begin(1, false);
+        vm.abort(aborted);
+
+        assertEquals(3, recording.heldAtStateChange.size());
+        assertFalse(recording.heldAtStateChange.contains(false));
+        Snapshot after = vm.activeXids.snapshot(Long.MAX_VALUE);
+        assertFalse(after.isInProgress(committed));
+        assertFalse(after.isInProgress(asyncCommitted));
+        assertFalse(after.isInProgress(aborted));
+
+        dm.close();
+        tm.close();
+    }
+}